@@ -19,6 +19,8 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
  * 
  * <b>The UI is protected via Spring Security, use user and password to login.</b>
  * 
+ * In production the service runs with the lean profile, without swagger and with lazy bean initialization (see the Dockerfile).
+ * 
  * 
  * @author pgobin
  *
@@ -8,6 +8,7 @@ import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
@@ -29,11 +30,15 @@ import springfox.documentation.swagger2.annotations.EnableSwagger2;
  * 
  * If none is defined, then the global default is used, if no global default is found, then the default defined in the place-holder below is used.
  * 
+ * Swagger is left out of production: this configuration is skipped under the lean spring profile, and the lean maven profile<br>
+ * does not compile it nor package springfox, so the endpoints are not scanned on boot.
+ * 
  * @author pgobin
  *
  */
 
 @Configuration
+@Profile("!lean")
 @EnableSwagger2
 public class SwaggerConfig {
 
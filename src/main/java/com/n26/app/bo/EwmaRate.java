@@ -0,0 +1,65 @@
+package com.n26.app.bo;
+
+/***************************************************
+ * An exponentially weighted moving rate per second, in the spirit of the unix load average.<br>
+ * Each update decays the current rate by exp(-elapsed / timeConstant) and adds value / timeConstant,<br>
+ * so a steady stream of v per second converges to a rate of v. Updates and reads are O(1) and allocation free.
+ *
+ * Not thread safe, callers must hold the statistics lock.
+ *
+ * @author pgobin
+ *
+ */
+public class EwmaRate {
+
+	private final double _timeConstantMillis;
+	private double _rate;
+	private long _lastUpdateMillis = Long.MIN_VALUE;
+
+	/**
+	 * @param timeConstantSeconds
+	 *            how fast older events fade out, after this long an event weighs 1/e of a fresh one
+	 */
+	public EwmaRate(long timeConstantSeconds)
+	{
+		if (timeConstantSeconds < 1)
+		{
+			throw new IllegalArgumentException("The EWMA time constant must be at least one second");
+		}
+		_timeConstantMillis = timeConstantSeconds * 1000.0;
+	}
+
+	/************************************************
+	 * Record a value (1 for counting events, the amount for a throughput) observed at nowMillis.
+	 *
+	 * @param value
+	 * @param nowMillis
+	 */
+	public void update(double value, long nowMillis)
+	{
+		decay(nowMillis);
+		_rate += value * 1000.0 / _timeConstantMillis;
+	}
+
+	/************************************************
+	 * @param nowMillis
+	 * @return the rate per second as of nowMillis
+	 */
+	public double getRate(long nowMillis)
+	{
+		decay(nowMillis);
+		return _rate;
+	}
+
+	private void decay(long nowMillis)
+	{
+		if (_lastUpdateMillis != Long.MIN_VALUE && nowMillis > _lastUpdateMillis)
+		{
+			_rate *= Math.exp(-(nowMillis - _lastUpdateMillis) / _timeConstantMillis);
+		}
+		if (nowMillis > _lastUpdateMillis)
+		{
+			_lastUpdateMillis = nowMillis;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.n26.app.bo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***************************************************
+ * Defines how the single writer thread of the {@link TransactionRingBuffer} waits when there is nothing to consume.<br>
+ * The strategies trade CPU for latency, from BUSY_SPIN (lowest latency, burns a core) to BLOCKING (cheapest, highest latency).
+ *
+ * Producers call signalAllWhenBlocking() after publishing so a blocked writer is woken up immediately.
+ *
+ * @author pgobin
+ *
+ */
+public interface IngestWaitStrategy {
+
+	/************************************************
+	 * Called by the writer thread when no published entry is available.
+	 *
+	 * @param idleCounter
+	 *            the number of consecutive idle loops, reset to zero once work is found
+	 * @return the next value of the idle counter
+	 */
+	int idle(int idleCounter);
+
+	/************************************************
+	 * Called by producers after publishing an entry, only the BLOCKING strategy needs to do any work here.
+	 */
+	void signalAllWhenBlocking();
+
+	/************************************************
+	 * Resolve a wait strategy from its configuration name (busy-spin, yielding, sleeping, blocking).
+	 *
+	 * @param name
+	 * @return the matching strategy
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown, so a misspelt statistics.ingest.waitStrategy fails at startup
+	 */
+	static IngestWaitStrategy fromName(String name)
+	{
+		String normalized = name == null ? "" : name.trim().toLowerCase().replace('_', '-');
+		switch (normalized)
+		{
+		case "busy-spin":
+			return new BusySpin();
+		case "yielding":
+			return new Yielding();
+		case "blocking":
+			return new Blocking();
+		case "sleeping":
+			return new Sleeping();
+		default:
+			throw new IllegalArgumentException("Unknown ingest wait strategy '" + name + "', use busy-spin, yielding, sleeping or blocking");
+		}
+	}
+
+	/************************************************
+	 * Spin on the CPU, use only when a core can be dedicated to the writer thread.
+	 */
+	final class BusySpin implements IngestWaitStrategy {
+		@Override
+		public int idle(int idleCounter)
+		{
+			return idleCounter + 1;
+		}
+
+		@Override
+		public void signalAllWhenBlocking()
+		{
+		}
+	}
+
+	/************************************************
+	 * Spin for a while then yield the CPU to other threads.
+	 */
+	final class Yielding implements IngestWaitStrategy {
+		private static final int SPIN_TRIES = 100;
+
+		@Override
+		public int idle(int idleCounter)
+		{
+			if (idleCounter >= SPIN_TRIES)
+			{
+				Thread.yield();
+			}
+			return idleCounter + 1;
+		}
+
+		@Override
+		public void signalAllWhenBlocking()
+		{
+		}
+	}
+
+	/************************************************
+	 * Spin, then yield, then park for short periods. A good default balance between latency and CPU usage.
+	 */
+	final class Sleeping implements IngestWaitStrategy {
+		private static final int SPIN_TRIES = 100;
+		private static final int YIELD_TRIES = 200;
+		private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+		@Override
+		public int idle(int idleCounter)
+		{
+			if (idleCounter < SPIN_TRIES)
+			{
+				return idleCounter + 1;
+			}
+			if (idleCounter < YIELD_TRIES)
+			{
+				Thread.yield();
+				return idleCounter + 1;
+			}
+			LockSupport.parkNanos(PARK_NANOS);
+			return idleCounter;
+		}
+
+		@Override
+		public void signalAllWhenBlocking()
+		{
+		}
+	}
+
+	/************************************************
+	 * Block on a condition until a producer signals. The wait is bounded so a missed signal can never stall the writer.<br>
+	 * Producers only take the lock when the writer is actually parked (_waiting), so publishing stays lock-free while the writer is busy.
+	 */
+	final class Blocking implements IngestWaitStrategy {
+		private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+		private final ReentrantLock _lock = new ReentrantLock();
+		private final Condition _published = _lock.newCondition();
+		// set by the writer for the duration of its wait
+		private volatile boolean _waiting;
+
+		@Override
+		public int idle(int idleCounter)
+		{
+			_lock.lock();
+			try
+			{
+				_waiting = true;
+				_published.awaitNanos(MAX_WAIT_NANOS);
+			} catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			} finally
+			{
+				_waiting = false;
+				_lock.unlock();
+			}
+			return idleCounter + 1;
+		}
+
+		@Override
+		public void signalAllWhenBlocking()
+		{
+			if (!_waiting)
+			{
+				return;
+			}
+			_lock.lock();
+			try
+			{
+				_published.signalAll();
+			} finally
+			{
+				_lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,538 @@
+package com.n26.app.bo;
+
+import java.util.Arrays;
+
+/***************************************************
+ * Exact statistics (count, sum, min, max, mean and variance) of the transactions in a sliding time window,<br>
+ * without keeping the transactions and without rescanning them.
+ *
+ * The window is a ring of per second leaves, the bottom of a complete binary tree (a segment tree) whose nodes hold the merge of their children.<br>
+ * min and max cannot be subtracted when data expires, but a node can always be recomputed from its two children,<br>
+ * so expiring a second only recomputes its ancestors (6 steps for a 60 seconds window). Moments are merged with Chan's parallel formula.
+ *
+ * Only the oldest second of the window is partially expired, it is the only one needing millisecond precision. Each second therefore also<br>
+ * keeps its transactions aggregated per millisecond, in a sparse sorted list holding only the milliseconds that saw transactions:<br>
+ * when the cut-off falls inside a second, its leaf is set to the aggregate of its milliseconds from the cut-off on (a suffix merge,<br>
+ * computed once per second and then looked up with a binary search as the cut-off moves).
+ *
+ * Memory follows the activity: a quiet window holds the tree (7KB for 60 seconds) and a few milliseconds per second.<br>
+ * A second keeps at most maxMillisPerSecond distinct milliseconds; past that, adjacent milliseconds of that second are merged<br>
+ * into groups of 2, 4, 8... ms, and a group expires once its last millisecond does (getCoarsenedSeconds() counts such seconds).<br>
+ * Count, sum, min, max and variance stay exact for every transaction in the window, only the moment a transaction of a coarsened<br>
+ * second leaves it may be up to the group width late. With maxMillisPerSecond of 1000 the window is always exact to the millisecond.
+ *
+ * Reads are O(1), adding a transaction is O(log seconds) plus a binary search in its second,<br>
+ * expiring is O(log seconds) per elapsed second. Nothing is allocated per transaction once the lists of a second have grown.
+ *
+ * Not thread safe, callers must hold the statistics lock.
+ *
+ * @author pgobin
+ *
+ */
+public class SlidingWindowStatistics {
+
+	private static final int MILLIS_PER_SECOND = 1000;
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	// one millisecond of a second: its offset, count, sum, min, max and m2
+	private static final int BYTES_PER_MILLI = Short.BYTES + 5 * Long.BYTES;
+	// one suffix aggregate of the partially expired second: count, sum, min, max, mean and m2
+	private static final int BYTES_PER_SUFFIX = 6 * Long.BYTES;
+
+	private final int _slots;
+	private final int _mask;
+	private final int _maxMillisPerSecond;
+	private final long[] _seconds;
+	private final MillisBucket[] _buckets;
+	private final long[] _count;
+	private final double[] _sum;
+	private final double[] _min;
+	private final double[] _max;
+	private final double[] _mean;
+	private final double[] _m2;
+
+	// suffix aggregates of the milliseconds of one second, index i merges the milliseconds i to the last one
+	private long[] _suffixCount = new long[0];
+	private double[] _suffixSum = new double[0];
+	private double[] _suffixMin = new double[0];
+	private double[] _suffixMax = new double[0];
+	private double[] _suffixMean = new double[0];
+	private double[] _suffixM2 = new double[0];
+	// the second the suffixes were computed for, EMPTY once a transaction was added to it
+	private long _suffixSecond = EMPTY;
+
+	// every millisecond before this one has been cleared from the tree
+	private long _expiredBefore = EMPTY;
+	private long _coarsenedSeconds;
+
+	/**
+	 * @param windowMillis
+	 *            the length of the window, exact to the millisecond
+	 */
+	public SlidingWindowStatistics(int windowMillis)
+	{
+		this(windowMillis, MILLIS_PER_SECOND);
+	}
+
+	/**
+	 * @param windowMillis
+	 *            the length of the window
+	 * @param maxMillisPerSecond
+	 *            the distinct milliseconds kept per second before they are merged into groups, 1000 to always keep them all
+	 */
+	public SlidingWindowStatistics(int windowMillis, int maxMillisPerSecond)
+	{
+		if (windowMillis < 1)
+		{
+			throw new IllegalArgumentException("The window must be at least one millisecond");
+		}
+		if (maxMillisPerSecond < 1)
+		{
+			throw new IllegalArgumentException("At least one millisecond per second must be kept");
+		}
+		_slots = slots(windowMillis);
+		_mask = _slots - 1;
+		_maxMillisPerSecond = Math.min(MILLIS_PER_SECOND, maxMillisPerSecond);
+		_seconds = new long[_slots];
+		_buckets = new MillisBucket[_slots];
+		_count = new long[2 * _slots];
+		_sum = new double[2 * _slots];
+		_min = new double[2 * _slots];
+		_max = new double[2 * _slots];
+		_mean = new double[2 * _slots];
+		_m2 = new double[2 * _slots];
+		Arrays.fill(_seconds, EMPTY);
+		for (int node = 1; node < 2 * _slots; node++)
+		{
+			resetNode(node);
+		}
+	}
+
+	/**
+	 * @return the ring of seconds, a power of two holding the window, the partially expired second and one second ahead
+	 */
+	private static int slots(int windowMillis)
+	{
+		int seconds = (windowMillis + MILLIS_PER_SECOND - 1) / MILLIS_PER_SECOND + 2;
+		return Integer.highestOneBit(seconds - 1) << 1;
+	}
+
+	/************************************************
+	 * @param windowMillis
+	 * @param maxMillisPerSecond
+	 * @return the bytes held by a window at most, when every second holds maxMillisPerSecond milliseconds (0 for the tree alone)
+	 */
+	public static long footprintBytes(int windowMillis, int maxMillisPerSecond)
+	{
+		long slots = slots(windowMillis);
+		// a second stamp and a list reference per slot, six columns over twice as many nodes
+		long tree = slots * (Long.BYTES + Long.BYTES) + 2 * slots * 6 * Long.BYTES;
+		return tree + (long) maxMillisPerSecond * (slots * BYTES_PER_MILLI + BYTES_PER_SUFFIX);
+	}
+
+	/************************************************
+	 * Add a transaction to the window.
+	 *
+	 * @param timestamp
+	 *            epoch millis, must not be more than the window ahead of the last expire() cut-off
+	 * @param amount
+	 * @return false if the timestamp is already expired and the transaction was ignored
+	 */
+	public boolean add(long timestamp, double amount)
+	{
+		if (timestamp < _expiredBefore)
+		{
+			return false;
+		}
+		long second = Math.floorDiv(timestamp, MILLIS_PER_SECOND);
+		int slot = (int) (second & _mask);
+		int node = _slots + slot;
+		MillisBucket bucket = _buckets[slot];
+		if (bucket == null)
+		{
+			bucket = new MillisBucket();
+			_buckets[slot] = bucket;
+		}
+		if (_seconds[slot] != second)
+		{
+			// whatever the slot held belongs to a past lap of the ring
+			_seconds[slot] = second;
+			resetNode(node);
+			bucket.clear();
+		}
+		if (bucket.add((int) (timestamp - second * MILLIS_PER_SECOND), amount, _maxMillisPerSecond))
+		{
+			_coarsenedSeconds++;
+		}
+		if (second == _suffixSecond)
+		{
+			_suffixSecond = EMPTY;
+		}
+		int cutOffset = cutOffset(second);
+		if (cutOffset > 0)
+		{
+			// the second is partially expired, a merge of groups may have changed which of its milliseconds are live
+			setLiveSuffix(slot, second, cutOffset);
+		} else
+		{
+			long count = ++_count[node];
+			_sum[node] += amount;
+			_min[node] = Math.min(_min[node], amount);
+			_max[node] = Math.max(_max[node], amount);
+			double delta = amount - _mean[node];
+			_mean[node] += delta / count;
+			_m2[node] += delta * (amount - _mean[node]);
+		}
+		propagate(node);
+		return true;
+	}
+
+	/************************************************
+	 * Remove every transaction whose timestamp is before the cut-off. O(log seconds) per elapsed second.
+	 *
+	 * @param cutOffMillis
+	 */
+	public void expire(long cutOffMillis)
+	{
+		if (cutOffMillis <= _expiredBefore)
+		{
+			return;
+		}
+		if (_count[1] == 0)
+		{
+			_expiredBefore = cutOffMillis;
+			return;
+		}
+		long cutSecond = Math.floorDiv(cutOffMillis, MILLIS_PER_SECOND);
+		long fromSecond = Math.floorDiv(_expiredBefore, MILLIS_PER_SECOND);
+		_expiredBefore = cutOffMillis;
+		if (cutSecond - fromSecond >= _slots)
+		{
+			// a full lap of the ring elapsed, cheaper to sweep the leaves once and rebuild the tree
+			for (int slot = 0; slot < _slots; slot++)
+			{
+				if (_seconds[slot] < cutSecond)
+				{
+					resetNode(_slots + slot);
+				}
+			}
+			for (int node = _slots - 1; node >= 1; node--)
+			{
+				combine(node);
+			}
+		} else
+		{
+			for (long second = fromSecond; second < cutSecond; second++)
+			{
+				int slot = (int) (second & _mask);
+				int node = _slots + slot;
+				if (_seconds[slot] == second && _count[node] != 0)
+				{
+					resetNode(node);
+					propagate(node);
+				}
+			}
+		}
+		int slot = (int) (cutSecond & _mask);
+		int cutOffset = cutOffset(cutSecond);
+		if (cutOffset > 0 && _seconds[slot] == cutSecond && _count[_slots + slot] != 0)
+		{
+			setLiveSuffix(slot, cutSecond, cutOffset);
+			propagate(_slots + slot);
+		}
+	}
+
+	public long getCount()
+	{
+		return _count[1];
+	}
+
+	public double getSum()
+	{
+		return _sum[1];
+	}
+
+	/**
+	 * @return the average, sum / count as DoubleSummaryStatistics does, 0 when the window is empty
+	 */
+	public double getAverage()
+	{
+		return _count[1] == 0 ? 0 : _sum[1] / _count[1];
+	}
+
+	/**
+	 * @return the min, positive infinity when the window is empty
+	 */
+	public double getMin()
+	{
+		return _min[1];
+	}
+
+	/**
+	 * @return the max, negative infinity when the window is empty
+	 */
+	public double getMax()
+	{
+		return _max[1];
+	}
+
+	/**
+	 * @return the population variance, 0 when the window is empty
+	 */
+	public double getVariance()
+	{
+		return _count[1] == 0 ? 0 : Math.max(0, _m2[1] / _count[1]);
+	}
+
+	/**
+	 * @return the number of seconds whose milliseconds had to be merged into groups, see maxMillisPerSecond
+	 */
+	public long getCoarsenedSeconds()
+	{
+		return _coarsenedSeconds;
+	}
+
+	/**
+	 * @return the offset of the cut-off within the second, 0 if the second is not partially expired
+	 */
+	private int cutOffset(long second)
+	{
+		return Math.floorDiv(_expiredBefore, MILLIS_PER_SECOND) == second ? (int) Math.floorMod(_expiredBefore, MILLIS_PER_SECOND) : 0;
+	}
+
+	/************************************************
+	 * Set the leaf of a partially expired second to the aggregate of its live milliseconds, the suffix from the cut-off.<br>
+	 * The suffixes are computed once per second (again if a transaction was added to the second since).
+	 */
+	private void setLiveSuffix(int slot, long second, int cutOffset)
+	{
+		MillisBucket bucket = _buckets[slot];
+		if (_suffixSecond != second)
+		{
+			computeSuffixes(bucket);
+			_suffixSecond = second;
+		}
+		int node = _slots + slot;
+		int first = bucket.firstLive(cutOffset);
+		if (first == bucket._size)
+		{
+			resetNode(node);
+			return;
+		}
+		_count[node] = _suffixCount[first];
+		_sum[node] = _suffixSum[first];
+		_min[node] = _suffixMin[first];
+		_max[node] = _suffixMax[first];
+		_mean[node] = _suffixMean[first];
+		_m2[node] = _suffixM2[first];
+	}
+
+	private void computeSuffixes(MillisBucket bucket)
+	{
+		int size = bucket._size;
+		if (_suffixCount.length < size)
+		{
+			int capacity = Math.min(_maxMillisPerSecond, Math.max(size, 2 * _suffixCount.length));
+			_suffixCount = new long[capacity];
+			_suffixSum = new double[capacity];
+			_suffixMin = new double[capacity];
+			_suffixMax = new double[capacity];
+			_suffixMean = new double[capacity];
+			_suffixM2 = new double[capacity];
+		}
+		for (int i = size - 1; i >= 0; i--)
+		{
+			long count = bucket._counts[i];
+			double sum = bucket._sums[i];
+			double mean = sum / count;
+			if (i == size - 1)
+			{
+				_suffixCount[i] = count;
+				_suffixSum[i] = sum;
+				_suffixMin[i] = bucket._mins[i];
+				_suffixMax[i] = bucket._maxs[i];
+				_suffixMean[i] = mean;
+				_suffixM2[i] = bucket._m2s[i];
+				continue;
+			}
+			long rightCount = _suffixCount[i + 1];
+			long total = count + rightCount;
+			double delta = _suffixMean[i + 1] - mean;
+			_suffixCount[i] = total;
+			_suffixSum[i] = sum + _suffixSum[i + 1];
+			_suffixMin[i] = Math.min(bucket._mins[i], _suffixMin[i + 1]);
+			_suffixMax[i] = Math.max(bucket._maxs[i], _suffixMax[i + 1]);
+			_suffixMean[i] = mean + delta * rightCount / total;
+			_suffixM2[i] = bucket._m2s[i] + _suffixM2[i + 1] + delta * delta * ((double) count * rightCount / total);
+		}
+	}
+
+	/************************************************
+	 * Recompute every ancestor of a node from its two children.
+	 */
+	private void propagate(int node)
+	{
+		for (int parent = node >>> 1; parent >= 1; parent >>>= 1)
+		{
+			combine(parent);
+		}
+	}
+
+	/************************************************
+	 * Recompute a node from its two children, moments are merged with Chan's formula.
+	 */
+	private void combine(int parent)
+	{
+		int left = parent << 1;
+		int right = left + 1;
+		long leftCount = _count[left];
+		long rightCount = _count[right];
+		long count = leftCount + rightCount;
+		if (count == 0)
+		{
+			resetNode(parent);
+			return;
+		}
+		_count[parent] = count;
+		_sum[parent] = _sum[left] + _sum[right];
+		_min[parent] = Math.min(_min[left], _min[right]);
+		_max[parent] = Math.max(_max[left], _max[right]);
+		double delta = _mean[right] - _mean[left];
+		_mean[parent] = _mean[left] + delta * rightCount / count;
+		_m2[parent] = _m2[left] + _m2[right] + delta * delta * ((double) leftCount * rightCount / count);
+	}
+
+	private void resetNode(int node)
+	{
+		_count[node] = 0;
+		_sum[node] = 0;
+		_min[node] = Double.POSITIVE_INFINITY;
+		_max[node] = Double.NEGATIVE_INFINITY;
+		_mean[node] = 0;
+		_m2[node] = 0;
+	}
+
+	/***************************************************
+	 * The transactions of one second aggregated per millisecond (or per group of 2^shift milliseconds once coarsened),<br>
+	 * sorted by offset in primitive columns that grow up to maxMillisPerSecond and are kept across laps of the ring.
+	 */
+	private static final class MillisBucket {
+		private short[] _offsets = new short[4];
+		private long[] _counts = new long[4];
+		private double[] _sums = new double[4];
+		private double[] _mins = new double[4];
+		private double[] _maxs = new double[4];
+		private double[] _m2s = new double[4];
+		private int _size;
+		private int _shift;
+
+		void clear()
+		{
+			_size = 0;
+			_shift = 0;
+		}
+
+		/**
+		 * @return true if this add made the second coarse (its milliseconds merged in groups for the first time)
+		 */
+		boolean add(int offset, double amount, int maxMillis)
+		{
+			boolean coarsened = false;
+			int index = Arrays.binarySearch(_offsets, 0, _size, (short) (offset >> _shift << _shift));
+			while (index < 0 && _size >= maxMillis)
+			{
+				coarsened |= _shift == 0;
+				coarsen();
+				index = Arrays.binarySearch(_offsets, 0, _size, (short) (offset >> _shift << _shift));
+			}
+			if (index < 0)
+			{
+				index = -index - 1;
+				insert(index, (short) (offset >> _shift << _shift), maxMillis);
+			}
+			long count = ++_counts[index];
+			double mean = count == 1 ? 0 : _sums[index] / (count - 1);
+			double delta = amount - mean;
+			_sums[index] += amount;
+			_mins[index] = Math.min(_mins[index], amount);
+			_maxs[index] = Math.max(_maxs[index], amount);
+			_m2s[index] += delta * (amount - _sums[index] / count);
+			return coarsened;
+		}
+
+		/**
+		 * @return the index of the first group whose last millisecond is not before the cut-off offset, _size if none
+		 */
+		int firstLive(int cutOffset)
+		{
+			int key = cutOffset - (1 << _shift) + 1;
+			int index = Arrays.binarySearch(_offsets, 0, _size, (short) Math.max(0, key));
+			return index >= 0 ? index : -index - 1;
+		}
+
+		private void insert(int index, short offset, int maxMillis)
+		{
+			if (_size == _offsets.length)
+			{
+				int capacity = Math.min(maxMillis, 2 * _offsets.length);
+				_offsets = Arrays.copyOf(_offsets, capacity);
+				_counts = Arrays.copyOf(_counts, capacity);
+				_sums = Arrays.copyOf(_sums, capacity);
+				_mins = Arrays.copyOf(_mins, capacity);
+				_maxs = Arrays.copyOf(_maxs, capacity);
+				_m2s = Arrays.copyOf(_m2s, capacity);
+			}
+			int moved = _size - index;
+			if (moved > 0)
+			{
+				System.arraycopy(_offsets, index, _offsets, index + 1, moved);
+				System.arraycopy(_counts, index, _counts, index + 1, moved);
+				System.arraycopy(_sums, index, _sums, index + 1, moved);
+				System.arraycopy(_mins, index, _mins, index + 1, moved);
+				System.arraycopy(_maxs, index, _maxs, index + 1, moved);
+				System.arraycopy(_m2s, index, _m2s, index + 1, moved);
+			}
+			_offsets[index] = offset;
+			_counts[index] = 0;
+			_sums[index] = 0;
+			_mins[index] = Double.POSITIVE_INFINITY;
+			_maxs[index] = Double.NEGATIVE_INFINITY;
+			_m2s[index] = 0;
+			_size++;
+		}
+
+		/**
+		 * Double the width of the groups, merging the adjacent groups that now share a start.
+		 */
+		private void coarsen()
+		{
+			_shift++;
+			int out = -1;
+			for (int i = 0; i < _size; i++)
+			{
+				short offset = (short) (_offsets[i] >> _shift << _shift);
+				if (out >= 0 && _offsets[out] == offset)
+				{
+					long leftCount = _counts[out];
+					long rightCount = _counts[i];
+					long count = leftCount + rightCount;
+					double delta = _sums[i] / rightCount - _sums[out] / leftCount;
+					_m2s[out] += _m2s[i] + delta * delta * ((double) leftCount * rightCount / count);
+					_counts[out] = count;
+					_sums[out] += _sums[i];
+					_mins[out] = Math.min(_mins[out], _mins[i]);
+					_maxs[out] = Math.max(_maxs[out], _maxs[i]);
+					continue;
+				}
+				out++;
+				_offsets[out] = offset;
+				_counts[out] = _counts[i];
+				_sums[out] = _sums[i];
+				_mins[out] = _mins[i];
+				_maxs[out] = _maxs[i];
+				_m2s[out] = _m2s[i];
+			}
+			_size = out + 1;
+		}
+	}
+}
@@ -0,0 +1,575 @@
+package com.n26.app.bo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.n26.app.model.TransactionHistoryPoint;
+
+/***************************************************
+ * Keeps the statistics of expired time slices so they are not lost once they leave the 60 seconds window.<br>
+ * Every expired slice is rolled into three downsampled series: per second, per minute and per hour.
+ *
+ * Each series is stored column by column in one memory-mapped file, the columns (bucket, count, sum, min, max) one after<br>
+ * the other, each laid out as a fixed size ring indexed by the bucket number. Writing a slice and reading a bucket are plain offset<br>
+ * lookups, and a range scan only touches the slots of the requested buckets, nothing else is read or deserialized.
+ *
+ * The bucket column holds bucket + 1 so that a zeroed (never written) slot can be told apart from bucket 0,<br>
+ * and a slot whose bucket does not match the requested one has been overwritten by a newer bucket (past retention).
+ *
+ * Each tenant has its own series, opened on first use in a sub directory named after the tenant.<br>
+ * The default tenant uses the history directory itself. Tenants do not share a lock.
+ *
+ * A tenant keeps its three mappings until release(), which unmaps them right away rather than when they are garbage collected,<br>
+ * so the number of mappings follows the number of live tenants. A query for a tenant without live statistics maps its series<br>
+ * for that query only. footprintBytes() is the mapped size of one tenant, getMaxMappedTenants() bounds the number of live tenants.
+ *
+ * The directory is locked (history.lock) for the life of the store, a second instance pointed at the same directory<br>
+ * runs without history instead of corrupting the files of the first one.
+ *
+ * @author pgobin
+ *
+ */
+@Component
+public class TransactionHistoryStore {
+
+	private static final Logger log = LogManager.getLogger(TransactionHistoryStore.class);
+
+	private static final long SECOND_MILLIS = 1000;
+	private static final long MINUTE_MILLIS = 60 * SECOND_MILLIS;
+	private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+	@Value("${statistics.history.enabled:true}")
+	private boolean _enabled;
+
+	@Value("${statistics.history.directory:${java.io.tmpdir}/n26-statistics-history}")
+	private String _directory;
+
+	// retention of each series in number of buckets: 1 day of seconds, 30 days of minutes, 2 years of hours
+	@Value("${statistics.history.secondSlots:86400}")
+	private int _secondSlots;
+
+	@Value("${statistics.history.minuteSlots:43200}")
+	private int _minuteSlots;
+
+	@Value("${statistics.history.hourSlots:17520}")
+	private int _hourSlots;
+
+	// upper bound on the number of points a single history query can return
+	@Value("${statistics.history.maxPoints:10000}")
+	private int _maxPoints;
+
+	@Value("${statistics.tenants.defaultTenant:default}")
+	private String _defaultTenant;
+
+	// address space of the mapped series of all the tenants together, off heap, see getMaxMappedTenants()
+	@Value("${statistics.history.maxMappedBytes:34359738368}")
+	private long _maxMappedBytes;
+
+	private File _root;
+	private FileChannel _lockChannel;
+	private final Map<String, TenantHistory> _tenants = new ConcurrentHashMap<>();
+
+	public TransactionHistoryStore()
+	{
+
+	}
+
+	/************************************************
+	 * Create the history directory, the series of each tenant are mapped on first use.
+	 */
+	@PostConstruct
+	public void open()
+	{
+		if (!_enabled)
+		{
+			log.info("Transaction statistics history is disabled.");
+			return;
+		}
+		_root = new File(_directory);
+		if (!_root.isDirectory() && !_root.mkdirs())
+		{
+			log.error("Cannot create directory " + _root.getAbsolutePath() + ", history is disabled.");
+			_enabled = false;
+			return;
+		}
+		if (!lockDirectory())
+		{
+			_enabled = false;
+			return;
+		}
+		log.info("Transaction statistics history is stored in " + _root.getAbsolutePath());
+	}
+
+	/************************************************
+	 * Take an exclusive lock on the history directory, held until close().
+	 *
+	 * @return false if another process (or another store of this JVM) already uses the directory
+	 */
+	private boolean lockDirectory()
+	{
+		File lockFile = new File(_root, "history.lock");
+		try
+		{
+			_lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock;
+			try
+			{
+				lock = _lockChannel.tryLock();
+			} catch (OverlappingFileLockException ex)
+			{
+				lock = null;
+			}
+			if (lock == null)
+			{
+				log.error("The history directory " + _root.getAbsolutePath() + " is used by another instance, history is disabled. Configure a distinct statistics.history.directory.");
+				_lockChannel.close();
+				_lockChannel = null;
+				return false;
+			}
+			return true;
+		} catch (IOException ex)
+		{
+			log.error("Cannot lock " + lockFile.getAbsolutePath() + ", history is disabled.", ex);
+			return false;
+		}
+	}
+
+	/************************************************
+	 * Flush the mapped columns of every tenant to disk and unlock the directory.
+	 */
+	@PreDestroy
+	public void close()
+	{
+		for (String tenant : _tenants.keySet())
+		{
+			release(tenant);
+		}
+		if (_lockChannel != null)
+		{
+			try
+			{
+				// closing the channel releases the lock
+				_lockChannel.close();
+			} catch (IOException ex)
+			{
+				log.warn("Cannot unlock the history directory " + _root.getAbsolutePath(), ex);
+			}
+			_lockChannel = null;
+		}
+	}
+
+	/************************************************
+	 * Flush and unmap the series of a tenant, e.g. when its engine is evicted. They are mapped again on next use.
+	 *
+	 * @param tenant
+	 */
+	public void release(String tenant)
+	{
+		TenantHistory history = _tenants.remove(tenant);
+		if (history != null)
+		{
+			history.close();
+		}
+	}
+
+	/************************************************
+	 * @return the bytes mapped for the series of one tenant, 0 if history is disabled
+	 */
+	public long footprintBytes()
+	{
+		return _enabled ? (long) (_secondSlots + _minuteSlots + _hourSlots) * RollupSeries.COLUMNS * Long.BYTES : 0;
+	}
+
+	/************************************************
+	 * The series are mapped outside of the heap, they are bounded by statistics.history.maxMappedBytes (32GB of address space<br>
+	 * by default, only the pages written or read are resident) rather than by the heap budget of the tenants.<br>
+	 * Each tenant maps three files, 5000 tenants stay well below the default vm.max_map_count of 65530.
+	 *
+	 * @return how many tenants can have their series mapped at the same time, Integer.MAX_VALUE if history is disabled
+	 */
+	public int getMaxMappedTenants()
+	{
+		long footprint = footprintBytes();
+		return footprint == 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, _maxMappedBytes / footprint);
+	}
+
+	public boolean isEnabled()
+	{
+		return _enabled;
+	}
+
+	/************************************************
+	 * Roll an expired slice into the second, minute and hour series of a tenant.
+	 *
+	 * @param tenant
+	 * @param slice
+	 */
+	public void record(String tenant, TransactionSlice slice)
+	{
+		if (!_enabled || slice.isEmpty())
+		{
+			return;
+		}
+		long timestamp = slice.getSecond() * SECOND_MILLIS;
+		while (true)
+		{
+			TenantHistory history = tenantHistory(tenant);
+			if (history == null)
+			{
+				return;
+			}
+			synchronized (history)
+			{
+				if (history.closed)
+				{
+					// released in the meantime, map it again
+					continue;
+				}
+				history.seconds.merge(timestamp, slice.getCount(), slice.getSum(), slice.getMin(), slice.getMax());
+				history.minutes.merge(timestamp, slice.getCount(), slice.getSum(), slice.getMin(), slice.getMax());
+				history.hours.merge(timestamp, slice.getCount(), slice.getSum(), slice.getMin(), slice.getMax());
+				return;
+			}
+		}
+	}
+
+	/************************************************
+	 * Return the statistics between from (inclusive) and to (exclusive), aggregated in steps of 'step' milliseconds.<br>
+	 * A bucket is included when it starts within [from, to), so a from or to inside a step cuts that step short. Points are stamped<br>
+	 * with the start of their step, aligned on multiples of 'step'. The coarsest series whose resolution divides the step, from and to<br>
+	 * is scanned, e.g. from = 10:00:30 with a minute step is answered from the per second series. Steps without any transaction are omitted.
+	 *
+	 * @param tenant
+	 * @param from
+	 *            epoch millis in UTC
+	 * @param to
+	 *            epoch millis in UTC
+	 * @param step
+	 *            must be a multiple of 1000
+	 * @return the non-empty points ordered by timestamp
+	 */
+	public List<TransactionHistoryPoint> query(String tenant, long from, long to, long step)
+	{
+		if (step < SECOND_MILLIS || step % SECOND_MILLIS != 0)
+		{
+			throw new IllegalArgumentException("step must be a positive multiple of 1000 milliseconds");
+		}
+		if (to <= from)
+		{
+			throw new IllegalArgumentException("to must be greater than from");
+		}
+		long firstStep = Math.floorDiv(from, step) * step;
+		if ((to - firstStep) / step > _maxPoints)
+		{
+			throw new IllegalArgumentException("The requested range returns more than " + _maxPoints + " points, use a larger step");
+		}
+		List<TransactionHistoryPoint> points = new ArrayList<>();
+		if (!_enabled)
+		{
+			return points;
+		}
+		while (true)
+		{
+			TenantHistory history = _tenants.get(tenant);
+			boolean openedForQuery = history == null;
+			if (openedForQuery)
+			{
+				// the tenant has no live statistics, do not keep its series mapped after this query
+				history = openHistory(tenant, false);
+				if (history == null)
+				{
+					return points;
+				}
+			}
+			try
+			{
+				synchronized (history)
+				{
+					if (history.closed)
+					{
+						continue;
+					}
+					RollupSeries series = alignedOn(HOUR_MILLIS, from, to, step) ? history.hours : alignedOn(MINUTE_MILLIS, from, to, step) ? history.minutes : history.seconds;
+					series.scan(from, to, step, points);
+					return points;
+				}
+			} finally
+			{
+				if (openedForQuery)
+				{
+					history.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if buckets of this resolution start and end on from, to and every step
+	 */
+	private static boolean alignedOn(long resolution, long from, long to, long step)
+	{
+		return step % resolution == 0 && Math.floorMod(from, resolution) == 0 && Math.floorMod(to, resolution) == 0;
+	}
+
+	/************************************************
+	 * @param tenant
+	 * @return the series of the tenant, mapped on first use and kept until release(), null if they cannot be opened
+	 */
+	private TenantHistory tenantHistory(String tenant)
+	{
+		TenantHistory history = _tenants.get(tenant);
+		if (history != null)
+		{
+			return history;
+		}
+		synchronized (_tenants)
+		{
+			history = _tenants.get(tenant);
+			if (history == null)
+			{
+				history = openHistory(tenant, true);
+				if (history != null)
+				{
+					_tenants.put(tenant, history);
+				}
+			}
+			return history;
+		}
+	}
+
+	/************************************************
+	 * @param tenant
+	 * @param create
+	 *            false to avoid creating files for a tenant that never recorded any history
+	 * @return the mapped series of the tenant, null if they do not exist or cannot be opened
+	 */
+	private TenantHistory openHistory(String tenant, boolean create)
+	{
+		File directory = tenant.equals(_defaultTenant) ? _root : new File(_root, tenant);
+		if (!create && !new File(directory, "second.history").isFile())
+		{
+			return null;
+		}
+		try
+		{
+			if (!directory.isDirectory() && !directory.mkdirs())
+			{
+				throw new IOException("Cannot create directory " + directory.getAbsolutePath());
+			}
+			return new TenantHistory(directory);
+		} catch (IOException ex)
+		{
+			log.error("Cannot open the transaction statistics history of tenant " + tenant, ex);
+			return null;
+		}
+	}
+
+	/***************************************************
+	 * The per second, per minute and per hour series of one tenant. Guarded by its own monitor.
+	 */
+	private class TenantHistory {
+		final RollupSeries seconds;
+		final RollupSeries minutes;
+		final RollupSeries hours;
+		// set once unmapped, the series must not be touched anymore
+		boolean closed;
+
+		TenantHistory(File directory) throws IOException
+		{
+			seconds = new RollupSeries(directory, "second", SECOND_MILLIS, _secondSlots);
+			minutes = new RollupSeries(directory, "minute", MINUTE_MILLIS, _minuteSlots);
+			hours = new RollupSeries(directory, "hour", HOUR_MILLIS, _hourSlots);
+		}
+
+		synchronized void close()
+		{
+			if (!closed)
+			{
+				closed = true;
+				seconds.close();
+				minutes.close();
+				hours.close();
+			}
+		}
+	}
+
+	/***************************************************
+	 * One downsampled series, a ring of 'slots' buckets of 'resolution' milliseconds stored as memory-mapped columns.
+	 */
+	static class RollupSeries {
+		static final int COLUMNS = 5;
+		private static final int BUCKET = 0;
+		private static final int COUNT = 1;
+		private static final int SUM = 2;
+		private static final int MIN = 3;
+		private static final int MAX = 4;
+
+		private final long _resolution;
+		private final int _slots;
+		private final MappedByteBuffer _columns;
+
+		RollupSeries(File directory, String name, long resolution, int slots) throws IOException
+		{
+			_resolution = resolution;
+			_slots = slots;
+			_columns = mapColumns(new File(directory, name + ".history"), slots);
+		}
+
+		/************************************************
+		 * Map the columns of 8 byte values. A file sized for a different retention is reset, its slot layout no longer applies.
+		 */
+		private static MappedByteBuffer mapColumns(File file, int slots) throws IOException
+		{
+			long size = (long) COLUMNS * slots * Long.BYTES;
+			if (size > Integer.MAX_VALUE)
+			{
+				throw new IOException("The retention of " + file.getName() + " is too large to be mapped");
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				if (raf.length() != size)
+				{
+					if (raf.length() != 0)
+					{
+						log.warn("History file " + file.getName() + " was written with a different retention and is reset.");
+					}
+					raf.setLength(0);
+					raf.setLength(size);
+				}
+				// the mapping stays valid once the channel is closed
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		void merge(long timestamp, long count, double sum, double min, double max)
+		{
+			long bucket = Math.floorDiv(timestamp, _resolution);
+			int slot = slot(bucket);
+			if (_columns.getLong(offset(BUCKET, slot)) != bucket + 1)
+			{
+				_columns.putLong(offset(BUCKET, slot), bucket + 1);
+				_columns.putLong(offset(COUNT, slot), count);
+				_columns.putDouble(offset(SUM, slot), sum);
+				_columns.putDouble(offset(MIN, slot), min);
+				_columns.putDouble(offset(MAX, slot), max);
+				return;
+			}
+			_columns.putLong(offset(COUNT, slot), _columns.getLong(offset(COUNT, slot)) + count);
+			_columns.putDouble(offset(SUM, slot), _columns.getDouble(offset(SUM, slot)) + sum);
+			_columns.putDouble(offset(MIN, slot), Math.min(_columns.getDouble(offset(MIN, slot)), min));
+			_columns.putDouble(offset(MAX, slot), Math.max(_columns.getDouble(offset(MAX, slot)), max));
+		}
+
+		/************************************************
+		 * Aggregate the buckets starting in [from, to) into points of 'step' milliseconds, reading only the slots in range.
+		 */
+		void scan(long from, long to, long step, List<TransactionHistoryPoint> points)
+		{
+			long lastBucket = Math.floorDiv(to - 1, _resolution);
+			// anything older than one lap of the ring has been overwritten, a bucket starting before from is left out
+			long firstBucket = Math.max(-Math.floorDiv(-from, _resolution), lastBucket - _slots + 1);
+			long bucketsPerStep = step / _resolution;
+			TransactionHistoryPoint point = null;
+			for (long bucket = firstBucket; bucket <= lastBucket; bucket++)
+			{
+				int slot = slot(bucket);
+				if (_columns.getLong(offset(BUCKET, slot)) != bucket + 1)
+				{
+					continue;
+				}
+				long pointTimestamp = Math.floorDiv(bucket, bucketsPerStep) * step;
+				if (point == null || point.getTimestamp() != pointTimestamp)
+				{
+					point = new TransactionHistoryPoint(pointTimestamp);
+					points.add(point);
+				}
+				point.merge(_columns.getLong(offset(COUNT, slot)), _columns.getDouble(offset(SUM, slot)), _columns.getDouble(offset(MIN, slot)),
+					_columns.getDouble(offset(MAX, slot)));
+			}
+		}
+
+		/************************************************
+		 * Flush and unmap the file, the series must not be used afterwards.
+		 */
+		void close()
+		{
+			_columns.force();
+			Unmapper.unmap(_columns);
+		}
+
+		private int slot(long bucket)
+		{
+			return (int) Math.floorMod(bucket, (long) _slots);
+		}
+
+		private int offset(int column, int slot)
+		{
+			return (column * _slots + slot) * Long.BYTES;
+		}
+	}
+
+	/***************************************************
+	 * Unmaps a buffer right away (sun.misc.Unsafe.invokeCleaner, JDK 9 and later) instead of when it is garbage collected.<br>
+	 * On a JVM without it the buffer is left to the garbage collector.
+	 */
+	static final class Unmapper {
+		private static Object _unsafe;
+		private static Method _invokeCleaner;
+
+		static
+		{
+			try
+			{
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				_unsafe = theUnsafe.get(null);
+				_invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (ReflectiveOperationException | RuntimeException ex)
+			{
+				log.warn("History files cannot be unmapped explicitly on this JVM, they are unmapped once garbage collected.");
+			}
+		}
+
+		private Unmapper()
+		{
+
+		}
+
+		static void unmap(MappedByteBuffer buffer)
+		{
+			if (_invokeCleaner == null)
+			{
+				return;
+			}
+			try
+			{
+				_invokeCleaner.invoke(_unsafe, buffer);
+			} catch (ReflectiveOperationException ex)
+			{
+				log.warn("Cannot unmap a history file, it is unmapped once garbage collected.", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.n26.app.bo;
+
+import java.util.Arrays;
+
+/***************************************************
+ * A compact open-addressing hash set of 64 bit transaction id hashes, used to drop retried transactions.<br>
+ * Ids are stored as primitive longs with linear probing (no boxing, no entry objects), the table doubles when half full<br>
+ * and clear() keeps the table so a reused slice does not allocate again. Insert and lookup are O(1) expected.
+ *
+ * 0 is reserved for empty slots, idHash() never returns it for a real id.
+ *
+ * Not thread safe, callers must hold the statistics lock.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionIdSet {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] _table = new long[INITIAL_CAPACITY];
+	private int _size;
+
+	/************************************************
+	 * Hash a client supplied transaction id to 64 bits (FNV-1a followed by the murmur3 finalizer).<br>
+	 * With a million ids in the window the probability of two different ids colliding is below 1e-7.
+	 *
+	 * @param transactionId
+	 * @return the hash, or 0 if the id is null or empty
+	 */
+	public static long idHash(String transactionId)
+	{
+		if (transactionId == null || transactionId.isEmpty())
+		{
+			return 0;
+		}
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < transactionId.length(); i++)
+		{
+			hash ^= transactionId.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+
+	/************************************************
+	 * @param idHash
+	 *            a non zero hash from idHash()
+	 * @return true if the id was added, false if it was already present
+	 */
+	public boolean add(long idHash)
+	{
+		if (_size * 2 >= _table.length)
+		{
+			grow();
+		}
+		int mask = _table.length - 1;
+		int index = (int) idHash & mask;
+		while (_table[index] != 0)
+		{
+			if (_table[index] == idHash)
+			{
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+		_table[index] = idHash;
+		_size++;
+		return true;
+	}
+
+	/************************************************
+	 * @param idHash
+	 * @return true if the id is present
+	 */
+	public boolean contains(long idHash)
+	{
+		int mask = _table.length - 1;
+		int index = (int) idHash & mask;
+		while (_table[index] != 0)
+		{
+			if (_table[index] == idHash)
+			{
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size()
+	{
+		return _size;
+	}
+
+	public void clear()
+	{
+		if (_size > 0)
+		{
+			Arrays.fill(_table, 0);
+			_size = 0;
+		}
+	}
+
+	private void grow()
+	{
+		long[] old = _table;
+		_table = new long[old.length * 2];
+		int mask = _table.length - 1;
+		for (long idHash : old)
+		{
+			if (idHash != 0)
+			{
+				int index = (int) idHash & mask;
+				while (_table[index] != 0)
+				{
+					index = (index + 1) & mask;
+				}
+				_table[index] = idHash;
+			}
+		}
+	}
+}
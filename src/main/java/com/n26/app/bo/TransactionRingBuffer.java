@@ -0,0 +1,249 @@
+package com.n26.app.bo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/***************************************************
+ * A preallocated, lock-free, multi-producer / single-consumer ring buffer in the style of the LMAX disruptor.<br>
+ * HTTP threads publish (target, amount, timestamp, transaction id hash) entries and a single writer thread drains them in batches into a {@link Handler},<br>
+ * so the aggregates are only ever mutated by one thread and the request threads never contend on them.
+ *
+ * Entries are stored in primitive arrays (no allocation per transaction). A slot is claimed with a CAS on the cursor,<br>
+ * written, then made visible through an availability flag holding the wrap round of the sequence.<br>
+ * Producers back off when the writer is a full lap behind.
+ *
+ * The target (of type T) tells the handler where the transaction goes, e.g. the statistics engine of a tenant.
+ *
+ * flush() gives the read side its guarantee: every entry published before the call has been handed to the handler<br>
+ * once it returns true.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionRingBuffer<T> {
+
+	private static final Logger log = LogManager.getLogger(TransactionRingBuffer.class);
+
+	private static final long FLUSH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/***************************************************
+	 * Receives the entries drained by the writer thread. endOfBatch is true for the last entry of each drained batch (at most maxBatchSize entries),<br>
+	 * which is where the handler should do its per-batch work: e.g. buffer the entries and apply them under a single lock, expiring the window once.
+	 */
+	public interface Handler<T> {
+		void onTransaction(T target, double amount, long timestamp, long idHash, boolean endOfBatch);
+	}
+
+	private final int _capacity;
+	private final int _mask;
+	private final int _shift;
+	private final int _maxBatchSize;
+	private final Object[] _targets;
+	private final double[] _amounts;
+	private final long[] _timestamps;
+	private final long[] _idHashes;
+	private final AtomicIntegerArray _available;
+	private final IngestWaitStrategy _waitStrategy;
+
+	// last claimed sequence (producers)
+	private final AtomicLong _cursor = new AtomicLong(-1);
+	// last sequence handed to the handler (single writer)
+	private final AtomicLong _consumed = new AtomicLong(-1);
+
+	private volatile boolean _running;
+	private Thread _writerThread;
+
+	/***************************************************
+	 * @param requestedCapacity
+	 *            rounded up to the next power of two
+	 * @param maxBatchSize
+	 *            upper bound on the number of entries handled before the consumed sequence is advanced
+	 * @param waitStrategy
+	 */
+	public TransactionRingBuffer(int requestedCapacity, int maxBatchSize, IngestWaitStrategy waitStrategy)
+	{
+		if (requestedCapacity < 2)
+		{
+			throw new IllegalArgumentException("Ring buffer capacity must be at least 2");
+		}
+		_capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+		_mask = _capacity - 1;
+		_shift = Integer.numberOfTrailingZeros(_capacity);
+		_maxBatchSize = Math.max(1, maxBatchSize);
+		_targets = new Object[_capacity];
+		_amounts = new double[_capacity];
+		_timestamps = new long[_capacity];
+		_idHashes = new long[_capacity];
+		_available = new AtomicIntegerArray(_capacity);
+		for (int i = 0; i < _capacity; i++)
+		{
+			_available.set(i, -1);
+		}
+		_waitStrategy = waitStrategy;
+	}
+
+	/***************************************************
+	 * Claim the next slot, write the transaction and publish it. Blocks (parking briefly) while the buffer is full.
+	 *
+	 * @param target
+	 * @param amount
+	 * @param timestamp
+	 * @param idHash
+	 *            see {@link TransactionIdSet#idHash(String)}, 0 when the transaction has no id
+	 */
+	public void publish(T target, double amount, long timestamp, long idHash)
+	{
+		long sequence;
+		while (true)
+		{
+			long current = _cursor.get();
+			sequence = current + 1;
+			if (sequence - _capacity > _consumed.get())
+			{
+				// the writer is a full lap behind, apply back pressure
+				LockSupport.parkNanos(1);
+				continue;
+			}
+			if (_cursor.compareAndSet(current, sequence))
+			{
+				break;
+			}
+		}
+		int index = (int) sequence & _mask;
+		_targets[index] = target;
+		_amounts[index] = amount;
+		_timestamps[index] = timestamp;
+		_idHashes[index] = idHash;
+		// the volatile write of the round number publishes the plain array writes above
+		_available.set(index, (int) (sequence >>> _shift));
+		_waitStrategy.signalAllWhenBlocking();
+	}
+
+	/***************************************************
+	 * Wait until every entry published before this call has been handed to the handler.
+	 *
+	 * @param timeoutMillis
+	 * @return true if the writer caught up within the timeout
+	 */
+	public boolean flush(long timeoutMillis)
+	{
+		long target = _cursor.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (_consumed.get() < target)
+		{
+			if (!_running || System.nanoTime() - deadline > 0)
+			{
+				return _consumed.get() >= target;
+			}
+			LockSupport.parkNanos(FLUSH_PARK_NANOS);
+		}
+		return true;
+	}
+
+	/***************************************************
+	 * Start the single writer thread which drains the buffer into the handler.
+	 *
+	 * @param handler
+	 * @param threadName
+	 */
+	public synchronized void start(Handler<T> handler, String threadName)
+	{
+		if (_running)
+		{
+			return;
+		}
+		_running = true;
+		_writerThread = new Thread(() -> drainLoop(handler), threadName);
+		_writerThread.setDaemon(true);
+		_writerThread.start();
+	}
+
+	/***************************************************
+	 * Stop the writer thread once everything published so far has been drained.
+	 *
+	 * @param timeoutMillis
+	 */
+	public synchronized void stop(long timeoutMillis)
+	{
+		if (!_running)
+		{
+			return;
+		}
+		flush(timeoutMillis);
+		_running = false;
+		_waitStrategy.signalAllWhenBlocking();
+		try
+		{
+			_writerThread.join(timeoutMillis);
+		} catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getCapacity()
+	{
+		return _capacity;
+	}
+
+	/***************************************************
+	 * The writer loop. Collects the contiguous run of published entries (bounded by maxBatchSize),<br>
+	 * hands them to the handler and then advances the consumed sequence once for the whole batch.
+	 */
+	@SuppressWarnings("unchecked")
+	private void drainLoop(Handler<T> handler)
+	{
+		int idleCounter = 0;
+		long next = _consumed.get() + 1;
+		while (_running || _consumed.get() < _cursor.get())
+		{
+			long available = highestPublished(next, Math.min(_cursor.get(), next + _maxBatchSize - 1));
+			if (available < next)
+			{
+				if (!_running)
+				{
+					// a producer claimed a slot but never published it, nothing more we can drain
+					break;
+				}
+				idleCounter = _waitStrategy.idle(idleCounter);
+				continue;
+			}
+			idleCounter = 0;
+			for (long sequence = next; sequence <= available; sequence++)
+			{
+				int index = (int) sequence & _mask;
+				try
+				{
+					handler.onTransaction((T) _targets[index], _amounts[index], _timestamps[index], _idHashes[index], sequence == available);
+				} catch (Exception ex)
+				{
+					log.error("An error occurred applying transaction amount = " + _amounts[index] + ", timestamp = " + _timestamps[index], ex);
+				}
+				// do not keep the target reachable until the slot is reused, e.g. an engine evicted in the meantime
+				_targets[index] = null;
+			}
+			_consumed.lazySet(available);
+			next = available + 1;
+		}
+	}
+
+	/***************************************************
+	 * @return the highest sequence in [from, to] such that every sequence from 'from' up to it is published, from - 1 if none
+	 */
+	private long highestPublished(long from, long to)
+	{
+		for (long sequence = from; sequence <= to; sequence++)
+		{
+			if (_available.get((int) sequence & _mask) != (int) (sequence >>> _shift))
+			{
+				return sequence - 1;
+			}
+		}
+		return to;
+	}
+}
@@ -0,0 +1,143 @@
+package com.n26.app.bo;
+
+/***************************************************
+ * The aggregate of all the transactions whose timestamp falls in the same epoch second.<br>
+ * Slices are kept in a small ring by the {@link TransactionStatisticsManager} and reused once they expire,<br>
+ * so recording a transaction into a slice never allocates.
+ *
+ * A slice also remembers the ids of the transactions it holds, so a retried transaction (same id, same timestamp,<br>
+ * hence same slice) is detected in O(1). The ids expire with the slice.
+ *
+ * A slice is not thread safe, callers must hold the statistics lock.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionSlice {
+
+	// marks a slot of the ring that does not hold any second yet
+	public static final long EMPTY = Long.MIN_VALUE;
+
+	private long second = EMPTY;
+	private long count;
+	private double sum;
+	private double min;
+	private double max;
+	// created on the first transaction carrying an id, then reused across resets
+	private TransactionIdSet ids;
+	// ids that were not remembered because the cap was reached, these transactions are not deduplicated
+	private long untrackedIds;
+
+	/************************************************
+	 * Start aggregating a new second, discarding whatever the slice held before.
+	 *
+	 * @param second
+	 *            epoch second, or EMPTY
+	 */
+	public void reset(long second)
+	{
+		this.second = second;
+		this.count = 0;
+		this.sum = 0;
+		this.min = Double.POSITIVE_INFINITY;
+		this.max = Double.NEGATIVE_INFINITY;
+		this.untrackedIds = 0;
+		if (ids != null)
+		{
+			ids.clear();
+		}
+	}
+
+	/************************************************
+	 * Add a single transaction amount to this slice in constant time.
+	 *
+	 * @param amount
+	 */
+	public void add(double amount)
+	{
+		count++;
+		sum += amount;
+		min = Math.min(min, amount);
+		max = Math.max(max, amount);
+	}
+
+	/************************************************
+	 * Remember a transaction id in this slice.
+	 *
+	 * @param idHash
+	 *            see {@link TransactionIdSet#idHash(String)}
+	 * @param maxIds
+	 *            memory cap, once this many ids are recorded new ids are no longer remembered (and not deduplicated), see getUntrackedIds()
+	 * @return false if the id was already recorded in this slice, i.e. the transaction is a duplicate
+	 */
+	public boolean addTransactionId(long idHash, int maxIds)
+	{
+		if (ids == null)
+		{
+			ids = new TransactionIdSet();
+		}
+		if (ids.size() >= maxIds)
+		{
+			if (ids.contains(idHash))
+			{
+				return false;
+			}
+			untrackedIds++;
+			return true;
+		}
+		return ids.add(idHash);
+	}
+
+	/**
+	 * @return the number of ids not remembered since the cap of addTransactionId() was reached, their retries would be counted again
+	 */
+	public long getUntrackedIds()
+	{
+		return untrackedIds;
+	}
+
+	public boolean isEmpty()
+	{
+		return second == EMPTY || count == 0;
+	}
+
+	/**
+	 * @return the epoch second this slice aggregates
+	 */
+	public long getSecond()
+	{
+		return second;
+	}
+
+	/**
+	 * @return the count
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the sum
+	 */
+	public double getSum()
+	{
+		return sum;
+	}
+
+	/**
+	 * @return the min
+	 */
+	public double getMin()
+	{
+		return min;
+	}
+
+	/**
+	 * @return the max
+	 */
+	public double getMax()
+	{
+		return max;
+	}
+}
@@ -0,0 +1,337 @@
+package com.n26.app.bo;
+
+import java.time.Instant;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.n26.app.model.TransactionStatisticResponse;
+
+/***************************************************
+ * The 60 seconds statistics of a single tenant. Each tenant gets its own engine from the {@link TransactionStatisticsManager},<br>
+ * with its own lock, so tenants never contend with each other.
+ *
+ * Transactions are not kept individually, they are aggregated into a {@link SlidingWindowStatistics} which keeps the exact<br>
+ * statistics of the window, and into a per-second {@link TransactionSlice}. Once a slice leaves the window it is rolled<br>
+ * into the {@link TransactionHistoryStore}. Every transaction also feeds two {@link EwmaRate} (transactions and amount per second),<br>
+ * and transactions carrying a transactionId are deduplicated against the ids recorded in their slice.
+ *
+ * The memory of an engine is bounded by maxBytes: the window tree takes a fixed 7KB, the rest is split evenly between the distinct<br>
+ * milliseconds the window keeps per second (1000 keeps it exact to the millisecond, 16MB does for the default tenant, 1MB keeps 190)<br>
+ * and the transaction ids remembered per slice. Both only take memory as the traffic of the tenant needs it, an idle tenant costs a few KB.<br>
+ * A second over either cap is logged as a warning: over the milliseconds its transactions may leave the window up to a few<br>
+ * milliseconds late, over the ids its further transactions are counted without deduplication.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionStatisticsEngine {
+
+	private static final Logger log = LogManager.getLogger(TransactionStatisticsEngine.class);
+
+	// Ring of per-second slices, a power of two larger than the window so a slot is never reused while its second is still valid
+	private static final int _sliceMask = 63;
+
+	// bytes per remembered id, a long in a hash table between a quarter and half full
+	private static final int _bytesPerId = 4 * Long.BYTES;
+
+	private final String _tenant;
+	private final int _validTransactionTimeInSeconds;
+	private final TransactionHistoryStore _historyStore;
+	private final int _maxIdsPerSlice;
+
+	// Exact sum/count/min/max/variance of the window, updated per transaction and per expired leaf without rescans
+	private final SlidingWindowStatistics _window;
+
+	// Use a single TransactionStatistic object for keeping track of the statistics.
+	// This allow us to maintain a single recorder which provides a constant time per (O(1)) requirement
+	private final TransactionStatisticResponse _runningStatistics = new TransactionStatisticResponse();
+
+	private final TransactionSlice[] _slices = new TransactionSlice[_sliceMask + 1];
+	private final EwmaRate _transactionRate;
+	private final EwmaRate _amountRate;
+
+	private volatile long _lastAccessMillis = System.currentTimeMillis();
+
+	// set under the lock once the manager dropped this engine, stores must then go to a new engine
+	private volatile boolean _evicted;
+
+	/**
+	 * @param tenant
+	 * @param validTransactionTimeInSeconds
+	 *            the length of the window
+	 * @param rateTimeConstantSeconds
+	 * @param maxBytes
+	 *            memory cap of this engine, at least footprintBytes(validTransactionTimeInSeconds)
+	 * @param historyStore
+	 */
+	public TransactionStatisticsEngine(String tenant, int validTransactionTimeInSeconds, long rateTimeConstantSeconds, long maxBytes, TransactionHistoryStore historyStore)
+	{
+		_tenant = tenant;
+		_validTransactionTimeInSeconds = validTransactionTimeInSeconds;
+		_historyStore = historyStore;
+		long minimumBytes = footprintBytes(validTransactionTimeInSeconds);
+		if (maxBytes < minimumBytes)
+		{
+			throw new IllegalArgumentException("The memory cap of a tenant must be at least " + minimumBytes + " bytes for a " + validTransactionTimeInSeconds + " seconds window");
+		}
+		int windowMillis = validTransactionTimeInSeconds * 1000;
+		long treeBytes = SlidingWindowStatistics.footprintBytes(windowMillis, 0);
+		long bytesPerMilli = SlidingWindowStatistics.footprintBytes(windowMillis, 1) - treeBytes;
+		int maxMillisPerSecond = (int) Math.min(1000, (maxBytes - treeBytes) / 2 / bytesPerMilli);
+		_window = new SlidingWindowStatistics(windowMillis, maxMillisPerSecond);
+		long windowBytes = SlidingWindowStatistics.footprintBytes(windowMillis, maxMillisPerSecond);
+		_maxIdsPerSlice = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (maxBytes - windowBytes) / _slices.length / _bytesPerId));
+		for (int i = 0; i < _slices.length; i++)
+		{
+			_slices[i] = new TransactionSlice();
+			_slices[i].reset(TransactionSlice.EMPTY);
+		}
+		_transactionRate = new EwmaRate(rateTimeConstantSeconds);
+		_amountRate = new EwmaRate(rateTimeConstantSeconds);
+		log.info("Created statistics engine for tenant " + tenant + ", keeping up to " + maxMillisPerSecond + " milliseconds and deduplicating up to " + _maxIdsPerSlice
+			+ " transaction ids per second.");
+	}
+
+	/************************************************
+	 * @param validTransactionTimeInSeconds
+	 * @return the smallest memory cap of an engine, the window tree keeping 2 milliseconds per second
+	 */
+	public static long footprintBytes(int validTransactionTimeInSeconds)
+	{
+		int windowMillis = validTransactionTimeInSeconds * 1000;
+		return 2 * SlidingWindowStatistics.footprintBytes(windowMillis, 1) - SlidingWindowStatistics.footprintBytes(windowMillis, 0);
+	}
+
+	public String getTenant()
+	{
+		return _tenant;
+	}
+
+	/**
+	 * @return epoch millis of the last transaction or read
+	 */
+	public long getLastAccessMillis()
+	{
+		return _lastAccessMillis;
+	}
+
+	public boolean isEvicted()
+	{
+		return _evicted;
+	}
+
+	/******************************************************
+	 * Refresh the statistics, and mark the engine evicted if it has been idle since idleBeforeMillis with nothing left in its window.<br>
+	 * Dropping such an engine loses nothing but its rates, its slices are rolled into the history.
+	 *
+	 * @param idleBeforeMillis
+	 * @return true if the engine is now evicted
+	 */
+	public boolean evictIfIdle(long idleBeforeMillis)
+	{
+		synchronized (_runningStatistics)
+		{
+			refresh();
+			if (_window.getCount() == 0 && _lastAccessMillis < idleBeforeMillis)
+			{
+				close();
+				_evicted = true;
+			}
+			return _evicted;
+		}
+	}
+
+	/******************************************************
+	 * Aggregate a transaction into the window, the slice of its epoch second and the rates.<br>
+	 * If the slot still holds an older second (it can only be expired), that second is rolled into the history first.<br>
+	 * A duplicate (its id is already in the slice) is acknowledged without being counted.
+	 *
+	 * @param amount
+	 * @param timestamp
+	 * @param idHash
+	 *            0 when the transaction has no id or deduplication is disabled
+	 * @return false if the transaction expired between its validation and now, or if the engine is evicted (see isEvicted())
+	 */
+	public boolean store(double amount, long timestamp, long idHash)
+	{
+		long now = System.currentTimeMillis();
+		_lastAccessMillis = now;
+		synchronized (_runningStatistics)
+		{
+			if (_evicted)
+			{
+				return false;
+			}
+			long timeStampMillis60SecondsInthePast = Instant.now().minusSeconds(_validTransactionTimeInSeconds).toEpochMilli();
+			// the window only accepts transactions after its expired leaves were cleared
+			_window.expire(timeStampMillis60SecondsInthePast);
+			return apply(amount, timestamp, idHash, timeStampMillis60SecondsInthePast, now);
+		}
+	}
+
+	/******************************************************
+	 * Aggregate a batch of transactions, entries from (inclusive) to to (exclusive) of the arrays, see store().<br>
+	 * The lock is taken, the clock read and the window expired once for the whole batch instead of once per transaction.
+	 *
+	 * @param amounts
+	 * @param timestamps
+	 * @param idHashes
+	 * @param from
+	 * @param to
+	 * @return false if the engine is evicted (see isEvicted()), nothing was stored
+	 */
+	public boolean storeAll(double[] amounts, long[] timestamps, long[] idHashes, int from, int to)
+	{
+		long now = System.currentTimeMillis();
+		_lastAccessMillis = now;
+		synchronized (_runningStatistics)
+		{
+			if (_evicted)
+			{
+				return false;
+			}
+			long timeStampMillis60SecondsInthePast = now - _validTransactionTimeInSeconds * 1000L;
+			_window.expire(timeStampMillis60SecondsInthePast);
+			for (int i = from; i < to; i++)
+			{
+				apply(amounts[i], timestamps[i], idHashes[i], timeStampMillis60SecondsInthePast, now);
+			}
+			return true;
+		}
+	}
+
+	/******************************************************
+	 * Callers must hold the _runningStatistics lock and have expired the window up to the cut-off.
+	 *
+	 * @return false if the transaction is older than the cut-off
+	 */
+	private boolean apply(double amount, long timestamp, long idHash, long cutOffMillis, long now)
+	{
+		if (timestamp < cutOffMillis)
+		{
+			return false;
+		}
+		long second = Math.floorDiv(timestamp, 1000L);
+		TransactionSlice slice = _slices[(int) (second & _sliceMask)];
+		if (slice.getSecond() != second)
+		{
+			rollSlice(slice);
+			slice.reset(second);
+		}
+		if (idHash != 0)
+		{
+			if (!slice.addTransactionId(idHash, _maxIdsPerSlice))
+			{
+				log.info("Duplicate transaction ignored for tenant " + _tenant + ", a transaction with the same id was already recorded at " + timestamp);
+				return true;
+			}
+			if (slice.getUntrackedIds() == 1)
+			{
+				// once per slice, the first id over the cap
+				log.warn("Tenant " + _tenant + " recorded more than " + _maxIdsPerSlice + " transaction ids in second " + second
+					+ ", the further transactions of that second are not deduplicated. Raise the memory cap of the tenant to deduplicate more.");
+			}
+		}
+		long coarsenedSeconds = _window.getCoarsenedSeconds();
+		_window.add(timestamp, amount);
+		if (_window.getCoarsenedSeconds() != coarsenedSeconds)
+		{
+			log.warn("Tenant " + _tenant + " recorded transactions in more distinct milliseconds of second " + second + " than its memory cap keeps,"
+				+ " they may leave the window a few milliseconds late. Raise the memory cap of the tenant to keep the window exact.");
+		}
+		slice.add(amount);
+		_transactionRate.update(1, now);
+		_amountRate.update(amount, now);
+		return true;
+	}
+
+	/******************************************************
+	 * Update the singleton _runningStatistics object to achieve (O(1).<br>
+	 * Expiring is amortized O(1) per elapsed leaf and reading the window is O(1),<br>
+	 * so the statistics are never computed from the list of transactions.
+	 */
+	public void refresh()
+	{
+		// synchronized block around the _runningStatistics object to avoid deadlock while we update the statistics.
+		synchronized (_runningStatistics)
+		{
+			long timeStampMillis60SecondsInthePast = Instant.now().minusSeconds(_validTransactionTimeInSeconds).toEpochMilli();
+			// remove transactions that are older than 60 seconds from the window, only the expired leaves are visited
+			_window.expire(timeStampMillis60SecondsInthePast);
+			rollExpiredSlices(timeStampMillis60SecondsInthePast);
+			if (_window.getCount() < 1 && _runningStatistics.getCount() > 0)
+			{
+				log.info("All transactions expired for tenant " + _tenant + "!");
+			}
+			_runningStatistics.setAvg(_window.getAverage());
+			_runningStatistics.setCount(_window.getCount());
+			_runningStatistics.setMin(_window.getMin());
+			_runningStatistics.setMax(_window.getMax());
+			_runningStatistics.setSum(_window.getSum());
+			_runningStatistics.setVariance(_window.getVariance());
+			_runningStatistics.setStdDev(Math.sqrt(_window.getVariance()));
+		}
+	}
+
+	/*****************************************************
+	 * Refresh and return the statistics of the window, in amortized (O(1).
+	 *
+	 * @return the statistics, null when there is no transaction in the window
+	 */
+	public TransactionStatisticResponse getStatistics()
+	{
+		long now = System.currentTimeMillis();
+		_lastAccessMillis = now;
+		synchronized (_runningStatistics)
+		{
+			refresh();
+			if (_runningStatistics.getCount() < 1)
+			{
+				return null;
+			}
+			// the rates decay with time, bring them up to now (O(1))
+			_runningStatistics.setTransactionsPerSecond(_transactionRate.getRate(now));
+			_runningStatistics.setAmountPerSecond(_amountRate.getRate(now));
+		}
+		return _runningStatistics;
+	}
+
+	/******************************************************
+	 * Roll every live slice into the history, used when the engine is evicted or the service shuts down.
+	 */
+	public void close()
+	{
+		synchronized (_runningStatistics)
+		{
+			rollExpiredSlices(Long.MAX_VALUE);
+		}
+	}
+
+	/******************************************************
+	 * Roll every slice whose whole second is older than the cut-off into the history and free its slot.<br>
+	 * Callers must hold the _runningStatistics lock.
+	 *
+	 * @param cutOffMillis
+	 *            slices ending before this epoch millis are expired
+	 */
+	private void rollExpiredSlices(long cutOffMillis)
+	{
+		for (TransactionSlice slice : _slices)
+		{
+			if (slice.getSecond() != TransactionSlice.EMPTY && slice.getSecond() * 1000L + 999 < cutOffMillis)
+			{
+				rollSlice(slice);
+				slice.reset(TransactionSlice.EMPTY);
+			}
+		}
+	}
+
+	private void rollSlice(TransactionSlice slice)
+	{
+		if (!slice.isEmpty())
+		{
+			_historyStore.record(_tenant, slice);
+		}
+	}
+}
@@ -1,29 +1,47 @@
 package com.n26.app.bo;
 
 import java.time.Instant;
-import java.util.DoubleSummaryStatistics;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import com.n26.app.model.RecordTransactionRequest;
+import com.n26.app.model.TransactionHistoryPoint;
 import com.n26.app.model.TransactionStatisticResponse;
 
 /***************************************************
- * This is the main worker class, it manages, maintains and validate the transactions. It is using a Concurrent Set for storing transactions. <br>
- * You can easily swap out the Set for persistent storage.
- * 
+ * This is the main worker class, it manages, maintains and validate the transactions.<br>
+ * It is a registry of per-tenant {@link TransactionStatisticsEngine}, each tenant has its own 60 seconds statistics and its own lock,<br>
+ * so tenants never contend with each other. Engines are created on the first transaction of a tenant and evicted once idle.<br>
+ * Calls without a tenant use the default tenant, which preserves the single tenant behaviour.<br>
+ * The heap of an engine is capped (an idle one takes a few KB, see {@link TransactionStatisticsEngine}) and maxTenants is lowered at start<br>
+ * so that all the tenants at their cap fit in statistics.tenants.memoryBudgetBytes, and their mapped history in statistics.history.maxMappedBytes.
+ *
  * When a transaction is to be saved, it validates that the transaction is not older than 60 seconds epoch UTC time.<br>
- * Additionally, it automatically evict transactions that are in the Set which are older that 60 seconds via a background scheduler<br/>
- * , this ensure that only valid and non-expired transactions are kept in memory,<br/>
+ * Additionally, it automatically evict transactions which are older that 60 seconds via a background scheduler<br/>
+ * , this ensure that only valid and non-expired transactions are accounted for,<br/>
  * it also maintains the statistics and keep it current so we can achieve a <br/>
- * constant time (O)(1) by not having to process all the entries in the list what a get statistics is requested.
- * 
+ * constant time (O)(1) by not having to process all the transactions when a get statistics is requested.
+ *
+ * When statistics.ingest.mode is async, validated transactions are published into preallocated {@link TransactionRingBuffer},<br>
+ * one per shard (a core by default), each drained by a single writer thread. A tenant always maps to the same shard.<br>
+ * The writer applies what it drained in batches, taking the lock of an engine once per batch rather than once per transaction.<br>
+ * Reads flush the buffer first (bounded by statistics.ingest.flushTimeoutMillis) so acknowledged writes are always reflected.
+ *
  * @author pgobin
  *
  */
@@ -36,25 +54,165 @@ public class TransactionStatisticsManager {
 	// Defines the validity of a transaction, transactions within this time is valid
 	private static final int _validTransactionTimeInSeconds = 60;
 
-	// Create a concurrent, thread safe, high performance set used for storing transactions
-	private static final Set<RecordTransactionRequest> _transactions = ConcurrentHashMap.newKeySet(100);
+	// Tenant names end up in file names of the history, keep them to a safe alphabet
+	private static final Pattern _tenantPattern = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+	// Registry of the statistics engine of each tenant
+	private final Map<String, TransactionStatisticsEngine> _engines = new ConcurrentHashMap<>();
+
+	@Autowired
+	private TransactionHistoryStore _historyStore;
+
+	// time constant of the exponentially weighted rates, 60 seconds behaves like a one minute load average
+	@Value("${statistics.rates.timeConstantSeconds:60}")
+	private long _rateTimeConstantSeconds;
+
+	// drop transactions whose transactionId was already recorded within the window
+	@Value("${statistics.dedup.enabled:true}")
+	private boolean _dedupEnabled;
+
+	// the tenant used when a request does not name one
+	@Value("${statistics.tenants.defaultTenant:default}")
+	private String _defaultTenant;
+
+	// heap cap of the engine of the default tenant, large enough to keep its window exact to the millisecond
+	@Value("${statistics.tenants.defaultTenantMaxBytes:16777216}")
+	private long _defaultTenantMaxBytes;
+
+	// heap cap of the engine of every other tenant
+	@Value("${statistics.tenants.maxBytesPerTenant:1048576}")
+	private long _maxBytesPerTenant;
+
+	// heap of all the tenant engines together, 0 for three quarters of the maximum heap
+	@Value("${statistics.tenants.memoryBudgetBytes:0}")
+	private long _memoryBudgetBytes;
+
+	// lowered at start so the tenants fit in the memory budget and their history in the mapped budget
+	@Value("${statistics.tenants.maxTenants:10000}")
+	private int _maxTenants;
+
+	// an engine without live transactions and without activity for this long is dropped
+	@Value("${statistics.tenants.idleEvictionSeconds:300}")
+	private long _idleEvictionSeconds;
+
+	// sync applies transactions on the calling thread, async hands them to the single writer of a ring buffer
+	@Value("${statistics.ingest.mode:sync}")
+	private String _ingestMode;
+
+	// number of ring buffers and writer threads in async mode, 0 for one per core
+	@Value("${statistics.ingest.shards:0}")
+	private int _shards;
 
-	// Use a single TransactionStatistic object for keeping track of the statistics.
-	// This allow us to maintain a single recorder which provides a constant time per (O(1)) requirement
-	private static final TransactionStatisticResponse _runningStatistics = new TransactionStatisticResponse();
+	@Value("${statistics.ingest.ringBufferSize:65536}")
+	private int _ringBufferSize;
+
+	@Value("${statistics.ingest.maxBatchSize:1024}")
+	private int _maxBatchSize;
+
+	@Value("${statistics.ingest.waitStrategy:sleeping}")
+	private String _waitStrategy;
+
+	// upper bound on how long a statistics read waits for the writer to apply acknowledged transactions
+	@Value("${statistics.ingest.flushTimeoutMillis:100}")
+	private long _flushTimeoutMillis;
+
+	private final List<TransactionRingBuffer<TransactionStatisticsEngine>> _ringBuffers = new ArrayList<>();
 
 	/************************************************
-	 * Record a transaction in the _transactions concurrent set. <br>
-	 * A transaction is valid only if the timestamp in {@link RecordTransactionRequest} is <b>NOT</b> older than 60 seconds epoch time.<br>
-	 * If the epoch timestamp is older that 60 seconds, this transaction is discarded.
-	 * 
-	 * Additionally, updateTransactionStatisticsForO1() with the current statistics.
-	 * 
+	 * Size the tenants to the memory budget, then start one single writer thread per shard when the asynchronous ingest mode is configured.
+	 */
+	@PostConstruct
+	public void start()
+	{
+		limitTenantsToMemoryBudget();
+		if (!"async".equalsIgnoreCase(_ingestMode))
+		{
+			log.info("Transactions are recorded synchronously on the request thread.");
+			return;
+		}
+		int shards = _shards > 0 ? _shards : Runtime.getRuntime().availableProcessors();
+		for (int shard = 0; shard < shards; shard++)
+		{
+			TransactionRingBuffer<TransactionStatisticsEngine> ringBuffer = new TransactionRingBuffer<>(_ringBufferSize, _maxBatchSize, IngestWaitStrategy.fromName(_waitStrategy));
+			ringBuffer.start(new BatchApplier(_maxBatchSize), "transaction-ingest-writer-" + shard);
+			_ringBuffers.add(ringBuffer);
+		}
+		log.info("Transactions are recorded asynchronously through " + shards + " ring buffers of " + _ringBuffers.get(0).getCapacity() + " entries using the " + _waitStrategy
+			+ " wait strategy.");
+	}
+
+	/************************************************
+	 * Lower maxTenants so that every tenant at its heap cap fits in the memory budget, and their mapped history<br>
+	 * in statistics.history.maxMappedBytes. The default tenant has its own cap and is counted in maxTenants.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a tenant memory cap cannot even hold the window
+	 */
+	private void limitTenantsToMemoryBudget()
+	{
+		long minimumBytes = TransactionStatisticsEngine.footprintBytes(_validTransactionTimeInSeconds);
+		if (_defaultTenantMaxBytes < minimumBytes || _maxBytesPerTenant < minimumBytes)
+		{
+			throw new IllegalArgumentException("statistics.tenants.defaultTenantMaxBytes and maxBytesPerTenant must be at least " + minimumBytes + " bytes");
+		}
+		long budget = _memoryBudgetBytes > 0 ? _memoryBudgetBytes : Runtime.getRuntime().maxMemory() / 4 * 3;
+		long otherTenants = Math.max(0, (budget - _defaultTenantMaxBytes) / _maxBytesPerTenant);
+		int maxTenants = (int) Math.max(1, Math.min(_maxTenants, Math.min(1 + otherTenants, _historyStore.getMaxMappedTenants())));
+		if (maxTenants < _maxTenants)
+		{
+			log.warn("statistics.tenants.maxTenants is lowered from " + _maxTenants + " to " + maxTenants + " to fit the memory budget of " + budget + " bytes ("
+				+ _maxBytesPerTenant + " bytes per tenant) and the " + _historyStore.getMaxMappedTenants() + " tenants whose history can be mapped.");
+			_maxTenants = maxTenants;
+		}
+		log.info("Up to " + _maxTenants + " tenants, memory budget " + budget + " bytes.");
+	}
+
+	/************************************************
+	 * Drain whatever is left in the ring buffers, stop the writer threads and roll the live slices of every tenant into the history<br>
+	 * so the seconds still in the window are not lost on shutdown.
+	 */
+	@PreDestroy
+	public void shutdown()
+	{
+		for (TransactionRingBuffer<TransactionStatisticsEngine> ringBuffer : _ringBuffers)
+		{
+			ringBuffer.stop(_flushTimeoutMillis);
+		}
+		for (TransactionStatisticsEngine engine : _engines.values())
+		{
+			engine.close();
+		}
+	}
+
+	/************************************************
+	 * Record a transaction for the default tenant, see {@link #recordTransaction(String, RecordTransactionRequest)}.
+	 *
 	 * @param transactionRequest
 	 * @return
 	 */
 	public boolean recordTransaction(RecordTransactionRequest transactionRequest)
 	{
+		return recordTransaction(null, transactionRequest);
+	}
+
+	/************************************************
+	 * Record a transaction in the statistics of a tenant. <br>
+	 * A transaction is valid only if the timestamp in {@link RecordTransactionRequest} is <b>NOT</b> older than 60 seconds epoch time.<br>
+	 * If the epoch timestamp is older that 60 seconds, this transaction is discarded.<br>
+	 * A transaction whose transactionId was already recorded is acknowledged but not counted again, so retries are idempotent.
+	 *
+	 * @param tenant
+	 *            null for the default tenant
+	 * @param transactionRequest
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the tenant name is invalid
+	 * @throws IllegalStateException
+	 *             if the tenant is new and the maximum number of tenants is reached
+	 */
+	public boolean recordTransaction(String tenant, RecordTransactionRequest transactionRequest)
+	{
+		String tenantName = tenantName(tenant);
 		try
 		{
 			if (transactionRequest == null)
@@ -75,13 +233,24 @@ public class TransactionStatisticsManager {
 			// verify that the transaction is within 60 seconds
 			if (transactionRequest.getTimestamp() >= timeStampMillis60SecondsInthePast)
 			{
-				_transactions.add(transactionRequest);
-				updateTransactionStatisticsForO1();
-				return true;
+				long idHash = _dedupEnabled ? TransactionIdSet.idHash(transactionRequest.getTransactionId()) : 0;
+				if (!_ringBuffers.isEmpty())
+				{
+					ringBuffer(tenantName).publish(engine(tenantName), transactionRequest.getAmount(), transactionRequest.getTimestamp(), idHash);
+					return true;
+				}
+				if (store(engine(tenantName), transactionRequest.getAmount(), transactionRequest.getTimestamp(), idHash))
+				{
+					return true;
+				}
 			}
 			log.warn("Cannot record transaction because the transaction timestamp [" + transactionRequest.getTimestamp() + "] is older than 60 seconds." + System.lineSeparator() + "Current epoch is "
 				+ Instant.now().toEpochMilli());
 			return false;
+		} catch (IllegalStateException ex)
+		{
+			// too many tenants, let the caller know rather than silently dropping the transaction
+			throw ex;
 		} catch (Exception ex)
 		{
 			log.error("An error occurred trying to add transaction " + transactionRequest.toString());
@@ -90,69 +259,216 @@ public class TransactionStatisticsManager {
 	}
 
 	/******************************************************
-	 * Update the singleton _runningStatistics object to achieve (O(1).<br>
-	 * This allows the getTransactionStatistics() method to return the single object without having to perform calculations<br>
-	 * on the list of transactions when requested.
+	 * Ring buffer handler of a shard, only ever invoked from the single writer thread of that shard.<br>
+	 * Entries are appended to preallocated arrays without any lock, and applied at the end of each drained batch:<br>
+	 * every run of entries of the same tenant is stored under a single acquisition of the lock of its engine.
 	 */
-	private void updateTransactionStatisticsForO1()
-	{
-		if (_transactions.isEmpty())
+	private final class BatchApplier implements TransactionRingBuffer.Handler<TransactionStatisticsEngine> {
+		private final TransactionStatisticsEngine[] _targets;
+		private final double[] _amounts;
+		private final long[] _timestamps;
+		private final long[] _idHashes;
+		private int _size;
+
+		BatchApplier(int maxBatchSize)
 		{
-			return;
+			int capacity = Math.max(1, maxBatchSize);
+			_targets = new TransactionStatisticsEngine[capacity];
+			_amounts = new double[capacity];
+			_timestamps = new long[capacity];
+			_idHashes = new long[capacity];
 		}
-		// synchronized block around the _runningStatistics object to avoid deadlock while we update the statistics.
-		synchronized (_runningStatistics)
-		{
-			long timeStampMillis60SecondsInthePast = Instant.now().minusSeconds(_validTransactionTimeInSeconds).toEpochMilli();
-			// remove transactions that are older than 60 seconds from the _transactions repository to conserver resources
-			// and to keep only valid transactions.
-			_transactions.removeIf(x -> x.getTimestamp() < timeStampMillis60SecondsInthePast);
-			DoubleSummaryStatistics stats = _transactions.stream().mapToDouble((x) -> x.getAmount()).summaryStatistics();
-			log.info(stats);
-			_runningStatistics.setAvg(stats.getAverage());
-			_runningStatistics.setCount(stats.getCount());
-			_runningStatistics.setMin(stats.getMin());
-			_runningStatistics.setMax(stats.getMax());
-			_runningStatistics.setSum(stats.getSum());
-			if (stats.getCount() < 1)
+
+		@Override
+		public void onTransaction(TransactionStatisticsEngine engine, double amount, long timestamp, long idHash, boolean endOfBatch)
+		{
+			_targets[_size] = engine;
+			_amounts[_size] = amount;
+			_timestamps[_size] = timestamp;
+			_idHashes[_size] = idHash;
+			_size++;
+			if (endOfBatch || _size == _targets.length)
+			{
+				applyBatch();
+			}
+		}
+
+		private void applyBatch()
+		{
+			try
+			{
+				int from = 0;
+				for (int i = 1; i <= _size; i++)
+				{
+					if (i == _size || _targets[i] != _targets[from])
+					{
+						storeAll(_targets[from], from, i);
+						from = i;
+					}
+				}
+			} finally
 			{
-				log.info("All transactions expired!");
+				// do not keep evicted engines reachable until the next batch
+				Arrays.fill(_targets, 0, _size, null);
+				_size = 0;
+			}
+		}
+
+		/**
+		 * If the engine was evicted in the meantime, the tenant gets a new engine and the run is stored again.
+		 */
+		private void storeAll(TransactionStatisticsEngine engine, int from, int to)
+		{
+			while (!engine.storeAll(_amounts, _timestamps, _idHashes, from, to))
+			{
+				engine = engine(engine.getTenant());
 			}
 		}
 	}
 
+	/******************************************************
+	 * Store a transaction in an engine. If the engine was evicted in the meantime, the tenant gets a new engine and the store is retried.<br>
+	 * An engine is only evicted once empty and idle, so a stored transaction is never lost to an eviction.
+	 */
+	private boolean store(TransactionStatisticsEngine engine, double amount, long timestamp, long idHash)
+	{
+		boolean stored = engine.store(amount, timestamp, idHash);
+		while (engine.isEvicted())
+		{
+			engine = engine(engine.getTenant());
+			stored = engine.store(amount, timestamp, idHash);
+		}
+		return stored;
+	}
+
 	/*****************************************************
-	 * 
-	 * Demonstrate (O(1))- Constant time regardless of the number of data.<br>
-	 * Using a singleton object when possible provides the most optimal performance and time constant,<br>
-	 * since we only need to track a singleton vs using a Set and pulling from an index, generally 0 if there are many.<br>
-	 * 
-	 * (O)(1) Set.get(0);
-	 * 
-	 * We could have easily call updateTransactionStaticticsForO1 in this method, <br>
-	 * to do realtime calculations on all the non-expired objects in __transactions, <br>
-	 * but doing so will result in (O(n) condition vs (O(1)
-	 * 
+	 * Return the statistics of past windows of the default tenant, see {@link #getTransactionHistory(String, long, long, long)}.
+	 *
+	 * @param from
+	 * @param to
+	 * @param step
+	 * @return the non-empty points ordered by timestamp
+	 */
+	public List<TransactionHistoryPoint> getTransactionHistory(long from, long to, long step)
+	{
+		return getTransactionHistory(null, from, to, step);
+	}
+
+	/*****************************************************
+	 * Return the statistics of past windows of a tenant, see {@link TransactionHistoryStore#query(String, long, long, long)}.
+	 *
+	 * @param tenant
+	 *            null for the default tenant
+	 * @param from
+	 *            epoch millis in UTC, inclusive
+	 * @param to
+	 *            epoch millis in UTC, exclusive
+	 * @param step
+	 *            size of each point in millis, a multiple of 1000
+	 * @return the non-empty points ordered by timestamp
+	 * @throws IllegalArgumentException
+	 *             if the tenant, range or step is invalid
+	 */
+	public List<TransactionHistoryPoint> getTransactionHistory(String tenant, long from, long to, long step)
+	{
+		return _historyStore.query(tenantName(tenant), from, to, step);
+	}
+
+	/*****************************************************
+	 * Return the statistics of the default tenant, see {@link #getTransactionStatistics(String)}.
+	 *
 	 * @return
 	 */
 	public TransactionStatisticResponse getTransactionStatistics()
 	{
-		if (_transactions.isEmpty())
+		return getTransactionStatistics(null);
+	}
+
+	/*****************************************************
+	 *
+	 * Demonstrate (O(1))- Constant time regardless of the number of data.<br>
+	 * Each engine keeps a singleton statistics object and finding the engine of a tenant is a single hash lookup.<br>
+	 * A tenant without an engine has nothing in its window, so reads never create engines.
+	 *
+	 * @param tenant
+	 *            null for the default tenant
+	 * @return the statistics, null if there are no transactions
+	 * @throws IllegalArgumentException
+	 *             if the tenant name is invalid
+	 */
+	public TransactionStatisticResponse getTransactionStatistics(String tenant)
+	{
+		String tenantName = tenantName(tenant);
+		if (!_ringBuffers.isEmpty() && !ringBuffer(tenantName).flush(_flushTimeoutMillis))
 		{
-			return null;
+			log.warn("The transaction writer did not catch up within " + _flushTimeoutMillis + " ms, statistics may not include the latest transactions.");
 		}
-		return _runningStatistics;
+		TransactionStatisticsEngine engine = _engines.get(tenantName);
+		return engine == null ? null : engine.getStatistics();
 	}
 
 	/****************************************************
-	 * How do we evict expired transactions from the _transaction set?<br>
+	 * How do we evict expired transactions from the engines?<br>
 	 * This cleanup scheduler allows us to remove expired transactions and only keep transactions that are 60 seconds or less.<br>
-	 * It also keeps the statistics report current and allows the getTransactionStatistics()<br/>
-	 * method to quickly return, in a time constant manner, the transaction statistics.
+	 * It also keeps the statistics of every tenant current, and drops the engines of tenants that have been idle<br/>
+	 * for statistics.tenants.idleEvictionSeconds and have nothing left in their window.
 	 */
 	@Scheduled(fixedRate = 1000, initialDelay = 5000)
 	private void maintainStatisticsForO1()
 	{
-		updateTransactionStatisticsForO1();
+		long idleBeforeMillis = System.currentTimeMillis() - _idleEvictionSeconds * 1000;
+		for (TransactionStatisticsEngine engine : _engines.values())
+		{
+			if (engine.evictIfIdle(idleBeforeMillis))
+			{
+				_engines.remove(engine.getTenant(), engine);
+				_historyStore.release(engine.getTenant());
+				log.info("Evicted the idle statistics engine of tenant " + engine.getTenant());
+			}
+		}
+	}
+
+	/**
+	 * @return the engine of the tenant, created on first use
+	 */
+	private TransactionStatisticsEngine engine(String tenantName)
+	{
+		TransactionStatisticsEngine engine = _engines.get(tenantName);
+		if (engine != null)
+		{
+			return engine;
+		}
+		// the default tenant always has a slot, existing clients without a tenant are never refused
+		boolean isDefault = tenantName.equals(_defaultTenant);
+		if (!isDefault && _engines.size() - (_engines.containsKey(_defaultTenant) ? 1 : 0) >= _maxTenants - 1)
+		{
+			throw new IllegalStateException("Cannot create statistics for tenant " + tenantName + ", the maximum of " + _maxTenants + " tenants is reached");
+		}
+		long maxBytes = isDefault ? _defaultTenantMaxBytes : _maxBytesPerTenant;
+		return _engines.computeIfAbsent(tenantName, name -> new TransactionStatisticsEngine(name, _validTransactionTimeInSeconds, _rateTimeConstantSeconds, maxBytes, _historyStore));
+	}
+
+	/**
+	 * @return the ring buffer of the shard the tenant maps to
+	 */
+	private TransactionRingBuffer<TransactionStatisticsEngine> ringBuffer(String tenantName)
+	{
+		return _ringBuffers.get((tenantName.hashCode() & Integer.MAX_VALUE) % _ringBuffers.size());
+	}
+
+	/**
+	 * @return the validated tenant name, the default tenant if none is given
+	 */
+	private String tenantName(String tenant)
+	{
+		if (tenant == null || tenant.isEmpty())
+		{
+			return _defaultTenant;
+		}
+		if (!_tenantPattern.matcher(tenant).matches())
+		{
+			throw new IllegalArgumentException("Invalid tenant " + tenant + ", use up to 64 letters, digits, '-' or '_'");
+		}
+		return tenant;
 	}
 }
@@ -1,20 +1,26 @@
 package com.n26.app.controller;
 
+import java.util.List;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.n26.app.bo.TransactionStatisticsManager;
 import com.n26.app.model.RecordTransactionRequest;
+import com.n26.app.model.TransactionHistoryPoint;
 import com.n26.app.model.TransactionStatisticResponse;
 
 import io.swagger.annotations.ApiOperation;
@@ -22,7 +28,10 @@ import io.swagger.annotations.ApiOperation;
 /*******************************************************************
  * This is our Statistics Controller, it exposes two endpoints with access to our StatisticsManager.<br/>
  * All business logic are in the StaticticsManager, hence removing any coupling and encourages code/logic isolation from the controller.
- * 
+ *
+ * Every endpoint is available for a tenant either through the x-tenant header (statistics.tenants.header) or under /tenants/{tenant}.<br/>
+ * Without a tenant, the default tenant is used.
+ *
  * @author pgobin
  *
  */
@@ -34,13 +43,17 @@ public class StatisticsController {
 	@Autowired
 	private TransactionStatisticsManager _transactionStatisticsManager;
 
+	// the http header naming the tenant of a request
+	@Value("${statistics.tenants.header:x-tenant}")
+	private String _tenantHeader;
+
 	public StatisticsController()
 	{
 
 	}
 
 	/*************************************************************
-	 * 
+	 *
 	 * @param headers
 	 * @param recordTransactionRequest
 	 * @return
@@ -51,13 +64,26 @@ public class StatisticsController {
 		+ "<br/>Return HTTP status code 204 (No Content) if the transaction you are trying to record is older that 60 seconds.")
 	public ResponseEntity<?> transactions(@RequestHeader HttpHeaders headers, @RequestBody(required = true) RecordTransactionRequest recordTransactionRequest)
 	{
-		log.debug("Request to record transaction");
-		boolean recorded = _transactionStatisticsManager.recordTransaction(recordTransactionRequest);
-		return ResponseEntity.status(recorded ? HttpStatus.CREATED : HttpStatus.NO_CONTENT).build();
+		return recordTransaction(headers.getFirst(_tenantHeader), recordTransactionRequest);
 	}
 
 	/*************************************************************
-	 * 
+	 *
+	 * @param headers
+	 * @param tenant
+	 * @param recordTransactionRequest
+	 * @return
+	 **************************************************************/
+	@RequestMapping(method = RequestMethod.POST, produces = "application/json", value = "/tenants/{tenant}/transactions")
+	@ApiOperation(value = "Transaction tracker of a tenant.", notes = "Same as /transactions, for the tenant in the path. Returns HTTP status code 400 (bad request) if the tenant name is invalid"
+		+ " and 503 (service unavailable) if the maximum number of tenants is reached.")
+	public ResponseEntity<?> tenantTransactions(@RequestHeader HttpHeaders headers, @PathVariable("tenant") String tenant, @RequestBody(required = true) RecordTransactionRequest recordTransactionRequest)
+	{
+		return recordTransaction(tenant, recordTransactionRequest);
+	}
+
+	/*************************************************************
+	 *
 	 * @param headers
 	 * @return
 	 **************************************************************/
@@ -65,9 +91,91 @@ public class StatisticsController {
 		+ "If there are no transactions, an HTTP status code of 204 (no content) is returned.")
 	@RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, value = "/statistics")
 	public ResponseEntity<TransactionStatisticResponse> statistics(@RequestHeader HttpHeaders headers)
+	{
+		return statisticsFor(headers.getFirst(_tenantHeader));
+	}
+
+	/*************************************************************
+	 *
+	 * @param headers
+	 * @param tenant
+	 * @return
+	 **************************************************************/
+	@ApiOperation(value = "Returns statistics of a tenant.", notes = "Same as /statistics, for the tenant in the path. Returns HTTP status code 400 (bad request) if the tenant name is invalid.")
+	@RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, value = "/tenants/{tenant}/statistics")
+	public ResponseEntity<TransactionStatisticResponse> tenantStatistics(@RequestHeader HttpHeaders headers, @PathVariable("tenant") String tenant)
+	{
+		return statisticsFor(tenant);
+	}
+
+	/*************************************************************
+	 *
+	 * @param headers
+	 * @param from
+	 * @param to
+	 * @param step
+	 * @return
+	 **************************************************************/
+	@ApiOperation(value = "Returns the statistics of past windows.", notes = "This endpoint returns the statistics of expired transactions between from (inclusive) and to (exclusive), epoch millis in UTC, "
+		+ "aggregated in steps of step milliseconds (a multiple of 1000, 60000 by default). Points are stamped with the start of their step, "
+		+ "a from or to inside a step only counts the seconds within the range. Only steps with transactions are returned.<br/>"
+		+ "Per second history is kept for a day, per minute for 30 days and per hour for 2 years.<br/>"
+		+ "If there is no history in the range, an HTTP status code of 204 (no content) is returned. An invalid range or step returns 400 (bad request).")
+	@RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, value = "/statistics/history")
+	public ResponseEntity<List<TransactionHistoryPoint>> history(@RequestHeader HttpHeaders headers, @RequestParam("from") long from, @RequestParam("to") long to,
+		@RequestParam(value = "step", defaultValue = "60000") long step)
+	{
+		return historyFor(headers.getFirst(_tenantHeader), from, to, step);
+	}
+
+	/*************************************************************
+	 *
+	 * @param headers
+	 * @param tenant
+	 * @param from
+	 * @param to
+	 * @param step
+	 * @return
+	 **************************************************************/
+	@ApiOperation(value = "Returns the statistics of past windows of a tenant.", notes = "Same as /statistics/history, for the tenant in the path.")
+	@RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, value = "/tenants/{tenant}/statistics/history")
+	public ResponseEntity<List<TransactionHistoryPoint>> tenantHistory(@RequestHeader HttpHeaders headers, @PathVariable("tenant") String tenant, @RequestParam("from") long from,
+		@RequestParam("to") long to, @RequestParam(value = "step", defaultValue = "60000") long step)
+	{
+		return historyFor(tenant, from, to, step);
+	}
+
+	private ResponseEntity<?> recordTransaction(String tenant, RecordTransactionRequest recordTransactionRequest)
+	{
+		log.debug("Request to record transaction");
+		boolean recorded;
+		try
+		{
+			recorded = _transactionStatisticsManager.recordTransaction(tenant, recordTransactionRequest);
+		} catch (IllegalArgumentException ex)
+		{
+			log.warn("Invalid transaction request: " + ex.getMessage());
+			return ResponseEntity.badRequest().build();
+		} catch (IllegalStateException ex)
+		{
+			log.error(ex.getMessage());
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+		}
+		return ResponseEntity.status(recorded ? HttpStatus.CREATED : HttpStatus.NO_CONTENT).build();
+	}
+
+	private ResponseEntity<TransactionStatisticResponse> statisticsFor(String tenant)
 	{
 		log.debug("Request for transaction statistics..");
-		TransactionStatisticResponse response = _transactionStatisticsManager.getTransactionStatistics();
+		TransactionStatisticResponse response;
+		try
+		{
+			response = _transactionStatisticsManager.getTransactionStatistics(tenant);
+		} catch (IllegalArgumentException ex)
+		{
+			log.warn("Invalid statistics request: " + ex.getMessage());
+			return ResponseEntity.badRequest().build();
+		}
 		if (response == null)
 		{
 			log.warn("There are no transactions currently recorded");
@@ -77,4 +185,25 @@ public class StatisticsController {
 		return new ResponseEntity<TransactionStatisticResponse>(response, HttpStatus.OK);
 	}
 
+	private ResponseEntity<List<TransactionHistoryPoint>> historyFor(String tenant, long from, long to, long step)
+	{
+		log.debug("Request for transaction statistics history..");
+		List<TransactionHistoryPoint> response;
+		try
+		{
+			response = _transactionStatisticsManager.getTransactionHistory(tenant, from, to, step);
+		} catch (IllegalArgumentException ex)
+		{
+			log.warn("Invalid history request: " + ex.getMessage());
+			return ResponseEntity.badRequest().build();
+		}
+		if (response.isEmpty())
+		{
+			log.warn("There is no transaction history in the requested range");
+			return ResponseEntity.noContent().build();
+		}
+		log.debug("Returning transaction history to client.");
+		return new ResponseEntity<List<TransactionHistoryPoint>>(response, HttpStatus.OK);
+	}
+
 }
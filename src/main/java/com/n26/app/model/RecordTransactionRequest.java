@@ -22,6 +22,9 @@ public class RecordTransactionRequest {
 	@ApiModelProperty(value = "Transaction timestamp in epoch in mills in UTC timezone (this is not the current timestamp)", required = true, example = "1525462144552", allowEmptyValue = false)
 	private long timestamp;
 
+	@ApiModelProperty(value = "Optional client generated id (e.g. a UUID). A transaction posted again with the same id and timestamp within 60 seconds is only counted once, so retries are safe.", required = false, example = "0505156e-bda9-41a3-88e3-29e62b643dd9", allowEmptyValue = true)
+	private String transactionId;
+
 	public RecordTransactionRequest()
 	{
 
@@ -38,6 +41,17 @@ public class RecordTransactionRequest {
 		this.timestamp = timestamp;
 	}
 
+	/**
+	 * @param amount
+	 * @param timestamp
+	 * @param transactionId
+	 */
+	public RecordTransactionRequest(double amount, long timestamp, String transactionId)
+	{
+		this(amount, timestamp);
+		this.transactionId = transactionId;
+	}
+
 	/**
 	 * @return the amount
 	 */
@@ -72,6 +86,23 @@ public class RecordTransactionRequest {
 		this.timestamp = timestamp;
 	}
 
+	/**
+	 * @return the transactionId, null when the client did not supply one
+	 */
+	public String getTransactionId()
+	{
+		return transactionId;
+	}
+
+	/**
+	 * @param transactionId
+	 *            the transactionId to set
+	 */
+	public void setTransactionId(String transactionId)
+	{
+		this.transactionId = transactionId;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -80,7 +111,7 @@ public class RecordTransactionRequest {
 	@Override
 	public String toString()
 	{
-		return "Transaction amount = " + getAmount() + ", Transaction timestamp = " + getTimestamp();
+		return "Transaction amount = " + getAmount() + ", Transaction timestamp = " + getTimestamp() + ", Transaction id = " + getTransactionId();
 	}
 
 }
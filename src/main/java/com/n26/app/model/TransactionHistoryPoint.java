@@ -0,0 +1,168 @@
+package com.n26.app.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/*******************************************************************
+ * This is a simple DTO which allow us to operate using POJOs for json.
+ *
+ * This POJO is one point of the time series returned by get/statistics/history.<br/>
+ *
+ * By annotating the attributes with API documentation, it allow you to understand the response when viewed in swagger ui.
+ *
+ * @author pgobin
+ *
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TransactionHistoryPoint {
+
+	@ApiModelProperty(value = "Start of this step in epoch millis in UTC timezone.", required = true, example = "1525462140000", allowEmptyValue = false)
+	private long timestamp;
+	@ApiModelProperty(value = "The total sum of transaction value in this step.", required = true, example = "1000", allowEmptyValue = false)
+	private double sum;
+	@ApiModelProperty(value = "The average amount of transaction value in this step.", required = true, example = "100", allowEmptyValue = false)
+	private double avg;
+	@ApiModelProperty(value = "The single highest transaction value in this step.", required = true, example = "200", allowEmptyValue = false)
+	private double max;
+	@ApiModelProperty(value = "The single lowest transaction value in this step.", required = true, example = "50", allowEmptyValue = false)
+	private double min;
+	@ApiModelProperty(value = "The total number of transaction happened in this step.", required = true, example = "10", allowEmptyValue = false)
+	private long count;
+
+	public TransactionHistoryPoint()
+	{
+
+	}
+
+	/**
+	 * @param timestamp
+	 */
+	public TransactionHistoryPoint(long timestamp)
+	{
+		super();
+		this.timestamp = timestamp;
+		this.min = Double.POSITIVE_INFINITY;
+		this.max = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Merge the aggregate of a stored bucket into this point.
+	 *
+	 * @param bucketCount
+	 * @param bucketSum
+	 * @param bucketMin
+	 * @param bucketMax
+	 */
+	public void merge(long bucketCount, double bucketSum, double bucketMin, double bucketMax)
+	{
+		count += bucketCount;
+		sum += bucketSum;
+		min = Math.min(min, bucketMin);
+		max = Math.max(max, bucketMax);
+		avg = count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * @return the timestamp
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * @param timestamp
+	 *            the timestamp to set
+	 */
+	public void setTimestamp(long timestamp)
+	{
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return the sum
+	 */
+	public double getSum()
+	{
+		return sum;
+	}
+
+	/**
+	 * @param sum
+	 *            the sum to set
+	 */
+	public void setSum(double sum)
+	{
+		this.sum = sum;
+	}
+
+	/**
+	 * @return the avg
+	 */
+	public double getAvg()
+	{
+		return avg;
+	}
+
+	/**
+	 * @param avg
+	 *            the avg to set
+	 */
+	public void setAvg(double avg)
+	{
+		this.avg = avg;
+	}
+
+	/**
+	 * @return the max
+	 */
+	public double getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * @param max
+	 *            the max to set
+	 */
+	public void setMax(double max)
+	{
+		this.max = max;
+	}
+
+	/**
+	 * @return the min
+	 */
+	public double getMin()
+	{
+		return min;
+	}
+
+	/**
+	 * @param min
+	 *            the min to set
+	 */
+	public void setMin(double min)
+	{
+		this.min = min;
+	}
+
+	/**
+	 * @return the count
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @param count
+	 *            the count to set
+	 */
+	public void setCount(long count)
+	{
+		this.count = count;
+	}
+
+}
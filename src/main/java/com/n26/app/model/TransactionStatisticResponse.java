@@ -27,6 +27,14 @@ public class TransactionStatisticResponse {
 	private double min;
 	@ApiModelProperty(value = "The total number of transaction happened in the last 60 seconds.", required = true, example = "10", allowEmptyValue = false)
 	private long count;
+	@ApiModelProperty(value = "The population variance of the transaction values in the last 60 seconds.", required = true, example = "2500", allowEmptyValue = false)
+	private double variance;
+	@ApiModelProperty(value = "The population standard deviation of the transaction values in the last 60 seconds.", required = true, example = "50", allowEmptyValue = false)
+	private double stdDev;
+	@ApiModelProperty(value = "Exponentially weighted number of transactions recorded per second.", required = true, example = "0.16", allowEmptyValue = false)
+	private double transactionsPerSecond;
+	@ApiModelProperty(value = "Exponentially weighted transaction value recorded per second.", required = true, example = "16.6", allowEmptyValue = false)
+	private double amountPerSecond;
 
 	public TransactionStatisticResponse()
 	{
@@ -118,4 +126,72 @@ public class TransactionStatisticResponse {
 		this.count = count;
 	}
 
+	/**
+	 * @return the variance
+	 */
+	public double getVariance()
+	{
+		return variance;
+	}
+
+	/**
+	 * @param variance
+	 *            the variance to set
+	 */
+	public void setVariance(double variance)
+	{
+		this.variance = variance;
+	}
+
+	/**
+	 * @return the stdDev
+	 */
+	public double getStdDev()
+	{
+		return stdDev;
+	}
+
+	/**
+	 * @param stdDev
+	 *            the stdDev to set
+	 */
+	public void setStdDev(double stdDev)
+	{
+		this.stdDev = stdDev;
+	}
+
+	/**
+	 * @return the transactionsPerSecond
+	 */
+	public double getTransactionsPerSecond()
+	{
+		return transactionsPerSecond;
+	}
+
+	/**
+	 * @param transactionsPerSecond
+	 *            the transactionsPerSecond to set
+	 */
+	public void setTransactionsPerSecond(double transactionsPerSecond)
+	{
+		this.transactionsPerSecond = transactionsPerSecond;
+	}
+
+	/**
+	 * @return the amountPerSecond
+	 */
+	public double getAmountPerSecond()
+	{
+		return amountPerSecond;
+	}
+
+	/**
+	 * @param amountPerSecond
+	 *            the amountPerSecond to set
+	 */
+	public void setAmountPerSecond(double amountPerSecond)
+	{
+		this.amountPerSecond = amountPerSecond;
+	}
+
 }
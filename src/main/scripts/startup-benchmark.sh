@@ -0,0 +1,78 @@
+#!/bin/sh
+#
+# Cold start benchmark: launch the service, poll /statistics until it is served (200 or 204),
+# then report the elapsed time since the JVM was launched and the resident set size of the process.
+#
+# usage: startup-benchmark.sh <port> <java arguments...>
+#   e.g. startup-benchmark.sh 18088 -Dspring.profiles.active=lean -jar target/app.jar
+#
+# MAX_STARTUP_MILLIS and MAX_RSS_KB, when set and non zero, make the benchmark fail above them.
+# TIMEOUT_SECONDS bounds the wait for the first response (60 by default).
+#
+port=$1
+shift
+url="http://localhost:$port/v1/StatisticsController/statistics"
+timeout=${TIMEOUT_SECONDS:-60}
+
+probe()
+{
+	if command -v curl > /dev/null; then
+		code=$(curl -s -o /dev/null -w '%{http_code}' "$url")
+		[ "$code" = "200" ] || [ "$code" = "204" ]
+	else
+		wget -q -O /dev/null "$url"
+	fi
+}
+
+# epoch millis, date +%s%N is GNU only (BSD and macOS print a literal N), fall back to perl then to whole seconds
+millis()
+{
+	now=$(date +%s%N 2> /dev/null)
+	case "$now" in
+	'' | *[!0-9]*)
+		perl -MTime::HiRes=time -e 'printf("%d\n", time() * 1000)' 2> /dev/null || echo $(($(date +%s) * 1000))
+		;;
+	*)
+		echo $((now / 1000000))
+		;;
+	esac
+}
+
+# resident set size in kB, from /proc on Linux and from ps elsewhere
+rss_kb()
+{
+	awk '/^VmRSS:/ { print $2 }' /proc/$1/status 2> /dev/null || ps -o rss= -p $1 2> /dev/null | tr -d ' '
+}
+
+start=$(millis)
+java "$@" --server.port="$port" > startup-benchmark.log 2>&1 &
+pid=$!
+deadline=$((start + timeout * 1000))
+until probe; do
+	if ! kill -0 $pid 2> /dev/null; then
+		echo "The service exited before serving /statistics, see startup-benchmark.log"
+		exit 1
+	fi
+	if [ "$(millis)" -gt "$deadline" ]; then
+		echo "The service did not serve /statistics within $timeout seconds, see startup-benchmark.log"
+		kill $pid
+		exit 1
+	fi
+	sleep 0.05
+done
+elapsed=$(($(millis) - start))
+rss=$(rss_kb $pid)
+kill $pid
+wait $pid 2> /dev/null
+
+echo "Cold start to first served /statistics: $elapsed ms, RSS: ${rss:-unknown} kB"
+status=0
+if [ "${MAX_STARTUP_MILLIS:-0}" -gt 0 ] && [ "$elapsed" -gt "$MAX_STARTUP_MILLIS" ]; then
+	echo "Startup time is above the limit of $MAX_STARTUP_MILLIS ms"
+	status=1
+fi
+if [ "${MAX_RSS_KB:-0}" -gt 0 ] && [ -n "$rss" ] && [ "$rss" -gt "$MAX_RSS_KB" ]; then
+	echo "RSS is above the limit of $MAX_RSS_KB kB"
+	status=1
+fi
+exit $status
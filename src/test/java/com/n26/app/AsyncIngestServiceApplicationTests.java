@@ -0,0 +1,106 @@
+package com.n26.app;
+
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.n26.app.controller.StatisticsController;
+import com.n26.app.model.RecordTransactionRequest;
+import com.n26.app.model.TransactionStatisticResponse;
+
+/********************************************************
+ * Runs the service with statistics.ingest.mode=async, transactions go through the ring buffers<br>
+ * and a statistics request must still see every transaction acknowledged before it.
+ * 
+ * @author pgobin
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+// 2000 transaction ids in the same second per tenant, above what the default 1MB cap of a tenant deduplicates
+@TestPropertySource(properties = { "statistics.ingest.mode=async", "statistics.ingest.shards=2", "statistics.history.directory=target/test-history/${random.uuid}",
+	"statistics.tenants.maxBytesPerTenant=8388608" })
+public class AsyncIngestServiceApplicationTests {
+
+	private static final Logger log = LogManager.getLogger(AsyncIngestServiceApplicationTests.class);
+
+	@Autowired
+	private StatisticsController _statisticsController;
+
+	private HttpHeaders getHttpHeaders(String tenant)
+	{
+		HttpHeaders dummyHeaders = new HttpHeaders();
+		dummyHeaders.add("x-account", "n26");
+		dummyHeaders.add("x-authtoken", "0505156e-bda9-41a3-88e3-29e62b643dd9");
+		dummyHeaders.add("x-tenant", tenant);
+		return dummyHeaders;
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * 4 client threads post 1000 transactions each, one of them retried with the same transactionId, for two tenants.
+	 * 
+	 * Result:<br/>
+	 * Every post returns 201 (created) and the statistics read right after count each transaction exactly once, per tenant.
+	 */
+	@Test
+	public void concurrentTransactionsAreAllCounted() throws InterruptedException
+	{
+		log.info("**** Testing concurrent transactions recorded through the ring buffers ****.");
+		long now = Instant.now().toEpochMilli();
+		List<Thread> clients = new ArrayList<>();
+		List<HttpStatus> failures = new ArrayList<>();
+		for (int c = 0; c < 4; c++)
+		{
+			String tenant = c % 2 == 0 ? "async-a" : "async-b";
+			int client = c;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 1000; i++)
+				{
+					RecordTransactionRequest transaction = new RecordTransactionRequest(i % 10, now, client + "-" + i);
+					ResponseEntity<?> result = _statisticsController.transactions(getHttpHeaders(tenant), transaction);
+					if (i == 0)
+					{
+						result = _statisticsController.transactions(getHttpHeaders(tenant), transaction);
+					}
+					if (result.getStatusCode() != HttpStatus.CREATED)
+					{
+						synchronized (failures)
+						{
+							failures.add(result.getStatusCode());
+						}
+					}
+				}
+			});
+			clients.add(thread);
+			thread.start();
+		}
+		for (Thread thread : clients)
+		{
+			thread.join();
+		}
+		assertTrue(failures.isEmpty());
+		for (String tenant : new String[] { "async-a", "async-b" })
+		{
+			TransactionStatisticResponse result = _statisticsController.statistics(getHttpHeaders(tenant)).getBody();
+			assertTrue(result.getCount() == 2000);
+			assertTrue(result.getSum() == 2 * 100 * 45);
+			assertTrue(result.getMin() == 0);
+			assertTrue(result.getMax() == 9);
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.n26.app;
 import static org.junit.Assert.assertTrue;
 
 import java.time.Instant;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -15,10 +16,12 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import com.n26.app.controller.StatisticsController;
 import com.n26.app.model.RecordTransactionRequest;
+import com.n26.app.model.TransactionHistoryPoint;
 import com.n26.app.model.TransactionStatisticResponse;
 
 /********************************************************
@@ -29,6 +32,8 @@ import com.n26.app.model.TransactionStatisticResponse;
  */
 @RunWith(SpringRunner.class)
 @SpringBootTest
+// Each test context records its history in its own directory, never in the one of a running instance
+@TestPropertySource(properties = "statistics.history.directory=target/test-history/${random.uuid}")
 // This annotation allow our test cases to run be method naming alphabetical order
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class ServiceApplicationTests {
@@ -129,4 +134,106 @@ public class ServiceApplicationTests {
 		assertTrue(resp.getStatusCode() == HttpStatus.NO_CONTENT);
 	}
 
+	/************************************************************
+	 * Usecase: <br/>
+	 * Request the history with a step that is not a multiple of a second, or with an empty range.
+	 * 
+	 * Result:<br/>
+	 * Returns 400 (bad request).
+	 */
+	@Test
+	public void eHistory_invalidRange()
+	{
+		log.info("**** Testing requesting history with an invalid step and range ****.");
+		HttpHeaders dummyHeaders = getHttpHeaders();
+		long now = Instant.now().toEpochMilli();
+		ResponseEntity<List<TransactionHistoryPoint>> invalidStep = _statisticsController.history(dummyHeaders, now - 60000, now, 1500);
+		assertTrue(invalidStep.getStatusCode() == HttpStatus.BAD_REQUEST);
+		ResponseEntity<List<TransactionHistoryPoint>> invalidRange = _statisticsController.history(dummyHeaders, now, now - 60000, 60000);
+		assertTrue(invalidRange.getStatusCode() == HttpStatus.BAD_REQUEST);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Request the history of a range in which no transaction ever expired.
+	 * 
+	 * Result:<br/>
+	 * Returns 204 (no-content).
+	 */
+	@Test
+	public void fHistory_noContentAvailable()
+	{
+		log.info("**** Testing requesting history for a range without transactions ****.");
+		HttpHeaders dummyHeaders = getHttpHeaders();
+		long from = Instant.now().plusSeconds(3600).toEpochMilli();
+		ResponseEntity<List<TransactionHistoryPoint>> result = _statisticsController.history(dummyHeaders, from, from + 60000, 60000);
+		assertTrue(result.getStatusCode() == HttpStatus.NO_CONTENT);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Request statistics after the transactions of cStatistics were recorded.
+	 * 
+	 * Result:<br/>
+	 * The population variance and standard deviation of 12, 13, 22.50 and 12.30 are returned, along with positive rates.
+	 */
+	@Test
+	public void gStatistics_volatility()
+	{
+		log.info("**** Testing requesting variance, standard deviation and rates ****.");
+		HttpHeaders dummyHeaders = getHttpHeaders();
+		TransactionStatisticResponse result = _statisticsController.statistics(dummyHeaders).getBody();
+		assertTrue(Math.abs(result.getVariance() - 19.1325) < 1e-9);
+		assertTrue(Math.abs(result.getStdDev() - Math.sqrt(19.1325)) < 1e-9);
+		assertTrue(result.getTransactionsPerSecond() > 0);
+		assertTrue(result.getAmountPerSecond() > 0);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A client retries a transaction with the same transactionId.
+	 * 
+	 * Result:<br/>
+	 * Both posts return 201 (created) but the transaction is only counted once.
+	 */
+	@Test
+	public void hAddDuplicateTransaction()
+	{
+		log.info("**** Testing adding the same transaction twice ****.");
+		HttpHeaders dummyHeaders = getHttpHeaders();
+		long countBefore = _statisticsController.statistics(dummyHeaders).getBody().getCount();
+		RecordTransactionRequest transaction = new RecordTransactionRequest(10, Instant.now().toEpochMilli(), "5d3d6fb6-4f57-4e8e-9f3c-2a5b1c0e7d11");
+		ResponseEntity<?> first = _statisticsController.transactions(dummyHeaders, transaction);
+		ResponseEntity<?> retry = _statisticsController.transactions(dummyHeaders, transaction);
+		assertTrue(first.getStatusCode() == HttpStatus.CREATED);
+		assertTrue(retry.getStatusCode() == HttpStatus.CREATED);
+		TransactionStatisticResponse result = _statisticsController.statistics(dummyHeaders).getBody();
+		assertTrue(result.getCount() == countBefore + 1);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Record a transaction for another tenant through the x-tenant header, and use an invalid tenant name.
+	 * 
+	 * Result:<br/>
+	 * The tenant sees only its own transaction, the default tenant is unchanged, and an invalid tenant returns 400 (bad request).
+	 */
+	@Test
+	public void iTenantStatistics_isolated()
+	{
+		log.info("**** Testing the statistics of two tenants ****.");
+		HttpHeaders dummyHeaders = getHttpHeaders();
+		long defaultCount = _statisticsController.statistics(dummyHeaders).getBody().getCount();
+		HttpHeaders tenantHeaders = getHttpHeaders();
+		tenantHeaders.add("x-tenant", "merchant-42");
+		ResponseEntity<?> created = _statisticsController.transactions(tenantHeaders, new RecordTransactionRequest(7, Instant.now().toEpochMilli()));
+		assertTrue(created.getStatusCode() == HttpStatus.CREATED);
+		TransactionStatisticResponse result = _statisticsController.tenantStatistics(dummyHeaders, "merchant-42").getBody();
+		assertTrue(result.getCount() == 1);
+		assertTrue(result.getSum() == 7);
+		assertTrue(_statisticsController.statistics(dummyHeaders).getBody().getCount() == defaultCount);
+		ResponseEntity<?> invalid = _statisticsController.tenantTransactions(dummyHeaders, "../etc", new RecordTransactionRequest(7, Instant.now().toEpochMilli()));
+		assertTrue(invalid.getStatusCode() == HttpStatus.BAD_REQUEST);
+	}
+
 }
@@ -0,0 +1,80 @@
+package com.n26.app.bo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/********************************************************
+ * Tests of {@link EwmaRate}: the decay over a known elapsed time, the convergence of a steady stream<br>
+ * and updates or reads arriving with an older clock than the last one.
+ *
+ * @author pgobin
+ *
+ */
+public class EwmaRateTests {
+
+	private static final long T0 = 1_600_002_000_000L;
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * With a time constant of 60 seconds, a value of 6 is recorded and the rate is read 0, 60 and 120 seconds later.
+	 *
+	 * Result:<br/>
+	 * The rate starts at 6 / 60 and decays by a factor e per time constant.
+	 */
+	@Test
+	public void rateDecaysByEPerTimeConstant()
+	{
+		EwmaRate rate = new EwmaRate(60);
+		rate.update(6, T0);
+		assertEquals(0.1, rate.getRate(T0), 1e-12);
+		assertEquals(0.1 * Math.exp(-1), rate.getRate(T0 + 60000), 1e-12);
+		assertEquals(0.1 * Math.exp(-2), rate.getRate(T0 + 120000), 1e-12);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A steady stream of 25 per second for 20 time constants, 4 updates of 6.25 per second.
+	 *
+	 * Result:<br/>
+	 * The rate converges to 25 per second (within the bias of sampling the decay every 250 ms).
+	 */
+	@Test
+	public void steadyStreamConvergesToItsRate()
+	{
+		EwmaRate rate = new EwmaRate(10);
+		for (long millis = 0; millis <= 200000; millis += 250)
+		{
+			rate.update(6.25, T0 + millis);
+		}
+		// the last update is not decayed yet, the discrete sum is v * (1/4 per tick) / (1 - exp(-0.25/10)) / 10 ~ v * 1.0125
+		assertEquals(25, rate.getRate(T0 + 200000), 25 * 0.02);
+		// half a tick later the stream is right at its rate
+		assertEquals(25, rate.getRate(T0 + 200125), 25 * 0.005);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A rate updated at t0 + 10s is read and updated with a clock of t0 + 5s (another thread read the clock first).
+	 *
+	 * Result:<br/>
+	 * The older clock neither decays the rate nor moves its clock back: the update is added as is and<br>
+	 * a later read decays from t0 + 10s.
+	 */
+	@Test
+	public void olderClockDoesNotChangeTheDecay()
+	{
+		EwmaRate rate = new EwmaRate(60);
+		rate.update(60, T0 + 10000);
+		assertEquals(1, rate.getRate(T0 + 5000), 0);
+		rate.update(60, T0 + 5000);
+		assertEquals(2, rate.getRate(T0 + 10000), 1e-12);
+		assertEquals(2 * Math.exp(-1), rate.getRate(T0 + 70000), 1e-12);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void timeConstantMustBePositive()
+	{
+		new EwmaRate(0);
+	}
+}
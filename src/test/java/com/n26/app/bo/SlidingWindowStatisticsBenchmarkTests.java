@@ -0,0 +1,90 @@
+package com.n26.app.bo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.DoubleSummaryStatistics;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+import com.n26.app.model.RecordTransactionRequest;
+
+/********************************************************
+ * Compares {@link SlidingWindowStatistics} with the previous implementation, a concurrent set of transactions<br>
+ * whose expired entries are removed and whose statistics are recomputed with summaryStatistics() on every refresh.
+ *
+ * Both hold more than a million live transactions. The timings are logged, the test only asserts that the results agree,<br>
+ * so it does not depend on the speed of the build machine.
+ *
+ * @author pgobin
+ *
+ */
+public class SlidingWindowStatisticsBenchmarkTests {
+
+	private static final Logger log = LogManager.getLogger(SlidingWindowStatisticsBenchmarkTests.class);
+
+	private static final int WINDOW_MILLIS = 60000;
+	private static final int LIVE_TRANSACTIONS = 1200000;
+	private static final int REFRESHES = 20;
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * 1.2M live transactions, then the window slides by one second 20 times.
+	 *
+	 * Result:<br/>
+	 * The window statistics match the full scan after every slide, min and max included.
+	 */
+	@Test
+	public void windowMatchesFullScanAtOneMillionTransactions()
+	{
+		Random random = new Random(26);
+		long now = 1_600_000_000_000L;
+		Set<RecordTransactionRequest> transactions = ConcurrentHashMap.newKeySet(LIVE_TRANSACTIONS);
+		SlidingWindowStatistics window = new SlidingWindowStatistics(WINDOW_MILLIS);
+		window.expire(now - WINDOW_MILLIS);
+
+		long windowInsertNanos = 0;
+		for (int i = 0; i < LIVE_TRANSACTIONS; i++)
+		{
+			long timestamp = now - WINDOW_MILLIS + (i % (WINDOW_MILLIS + 1));
+			double amount = Math.round(random.nextDouble() * 100000) / 100.0;
+			transactions.add(new RecordTransactionRequest(amount, timestamp));
+			long start = System.nanoTime();
+			window.add(timestamp, amount);
+			windowInsertNanos += System.nanoTime() - start;
+		}
+
+		long scanNanos = 0;
+		long windowNanos = 0;
+		for (int refresh = 1; refresh <= REFRESHES; refresh++)
+		{
+			long cutOff = now - WINDOW_MILLIS + refresh * 1000L;
+
+			long start = System.nanoTime();
+			transactions.removeIf(x -> x.getTimestamp() < cutOff);
+			DoubleSummaryStatistics stats = transactions.stream().mapToDouble((x) -> x.getAmount()).summaryStatistics();
+			scanNanos += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			window.expire(cutOff);
+			long count = window.getCount();
+			double min = window.getMin();
+			double max = window.getMax();
+			double sum = window.getSum();
+			windowNanos += System.nanoTime() - start;
+
+			assertEquals(stats.getCount(), count);
+			assertTrue(stats.getMin() == min);
+			assertTrue(stats.getMax() == max);
+			assertEquals(stats.getSum(), sum, 1e-6 * Math.abs(stats.getSum()));
+		}
+
+		log.info("Window insert: " + windowInsertNanos / LIVE_TRANSACTIONS + " ns per transaction");
+		log.info("Full scan refresh: " + scanNanos / REFRESHES / 1000 + " us, window refresh: " + windowNanos / REFRESHES / 1000 + " us (" + transactions.size() + " live transactions)");
+	}
+}
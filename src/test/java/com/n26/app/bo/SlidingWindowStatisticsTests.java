@@ -0,0 +1,137 @@
+package com.n26.app.bo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/********************************************************
+ * Tests of the moments of {@link SlidingWindowStatistics}: the variance of transactions spread over distant parts of the window<br>
+ * (merged with Chan's formula) and after a part of them expired, compared with a two pass computation.
+ *
+ * @author pgobin
+ *
+ */
+public class SlidingWindowStatisticsTests {
+
+	private static final int WINDOW_MILLIS = 60000;
+
+	// an epoch millis on a second boundary
+	private static final long T0 = 1_600_002_000_000L;
+
+	private static void add(SlidingWindowStatistics window, long timestamp, double... amounts)
+	{
+		for (double amount : amounts)
+		{
+			assertTrue(window.add(timestamp, amount));
+		}
+	}
+
+	private static void assertMoments(SlidingWindowStatistics window, double... amounts)
+	{
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double amount : amounts)
+		{
+			sum += amount;
+			min = Math.min(min, amount);
+			max = Math.max(max, amount);
+		}
+		double mean = sum / amounts.length;
+		double squares = 0;
+		for (double amount : amounts)
+		{
+			squares += (amount - mean) * (amount - mean);
+		}
+		assertEquals(amounts.length, window.getCount());
+		assertEquals(sum, window.getSum(), 1e-9);
+		assertEquals(mean, window.getAverage(), 1e-9);
+		assertEquals(min, window.getMin(), 0);
+		assertEquals(max, window.getMax(), 0);
+		assertEquals(squares / amounts.length, window.getVariance(), 1e-9);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * 3 small amounts early in the window and 7 large ones 40 seconds later, so they are only merged high up in the tree.
+	 *
+	 * Result:<br/>
+	 * The merge of the two unequal halves gives the population variance of the 10 amounts.
+	 */
+	@Test
+	public void varianceOfUnequalHalves()
+	{
+		SlidingWindowStatistics window = new SlidingWindowStatistics(WINDOW_MILLIS);
+		window.expire(T0);
+		add(window, T0 + 5, 1, 2, 3);
+		add(window, T0 + 40000, 100, 101, 102, 103, 104, 105);
+		add(window, T0 + 40001, 250);
+		assertMoments(window, 1, 2, 3, 100, 101, 102, 103, 104, 105, 250);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Amounts at 5 ms, 700 ms and 1.5 s into the window, which then slides by 300 ms, by 1 s and past everything.
+	 *
+	 * Result:<br/>
+	 * After each slide the moments are those of the amounts still in the window, down to an empty window.
+	 */
+	@Test
+	public void varianceAfterPartialExpiry()
+	{
+		SlidingWindowStatistics window = new SlidingWindowStatistics(WINDOW_MILLIS);
+		window.expire(T0);
+		add(window, T0 + 5, 10, 20);
+		add(window, T0 + 700, 7);
+		add(window, T0 + 1500, 3, 3.5, 1000);
+		assertMoments(window, 10, 20, 7, 3, 3.5, 1000);
+
+		// the cut-off falls inside the first second: the amounts at 5 ms go, the one at 700 ms of the same second stays
+		window.expire(T0 + 300);
+		assertMoments(window, 7, 3, 3.5, 1000);
+		window.expire(T0 + 1300);
+		assertMoments(window, 3, 3.5, 1000);
+		assertFalse(window.add(T0 + 1299, 1));
+
+		window.expire(T0 + 1501);
+		assertEquals(0, window.getCount());
+		assertEquals(0, window.getVariance(), 0);
+		assertEquals(Double.POSITIVE_INFINITY, window.getMin(), 0);
+		assertEquals(Double.NEGATIVE_INFINITY, window.getMax(), 0);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A window keeping 4 milliseconds per second receives amounts in 10 distinct milliseconds of a second, which then expires gradually.
+	 *
+	 * Result:<br/>
+	 * The second is merged into groups of 4 ms and reported as coarsened. Its moments stay exact, and when the cut-off falls<br>
+	 * inside a group the whole group stays in the window until its last millisecond expires, never longer.
+	 */
+	@Test
+	public void coarsenedSecondExpiresWithItsGroups()
+	{
+		SlidingWindowStatistics window = new SlidingWindowStatistics(WINDOW_MILLIS, 4);
+		window.expire(T0);
+		for (int offset = 0; offset < 10; offset++)
+		{
+			add(window, T0 + offset, offset);
+		}
+		add(window, T0 + 1000, 100);
+		assertEquals(1, window.getCoarsenedSeconds());
+		assertMoments(window, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 100);
+
+		// the group 4-7 is still live at 5 ms, 4 stays 1 ms longer than it would at millisecond precision
+		window.expire(T0 + 5);
+		assertMoments(window, 4, 5, 6, 7, 8, 9, 100);
+		window.expire(T0 + 8);
+		assertMoments(window, 8, 9, 100);
+		// a late transaction in the partially expired second joins its group
+		add(window, T0 + 9, 50);
+		assertMoments(window, 8, 9, 50, 100);
+		window.expire(T0 + 1000);
+		assertMoments(window, 100);
+	}
+}
@@ -0,0 +1,246 @@
+package com.n26.app.bo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.n26.app.model.TransactionHistoryPoint;
+
+/********************************************************
+ * Tests of the {@link TransactionHistoryStore} against a temporary directory: expired slices are rolled into<br>
+ * the per second, per minute and per hour series and come back aggregated by query(), retention overwrites<br>
+ * old buckets, tenants are kept apart and a directory is used by a single store at a time.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionHistoryStoreTests {
+
+	// an epoch millis on an hour boundary
+	private static final long HOUR = 1_600_002_000_000L;
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	private TransactionHistoryStore _store;
+
+	@After
+	public void closeStore()
+	{
+		if (_store != null)
+		{
+			_store.close();
+		}
+	}
+
+	private TransactionHistoryStore openStore(File directory, int secondSlots)
+	{
+		TransactionHistoryStore store = new TransactionHistoryStore();
+		ReflectionTestUtils.setField(store, "_enabled", true);
+		ReflectionTestUtils.setField(store, "_directory", directory.getAbsolutePath());
+		ReflectionTestUtils.setField(store, "_secondSlots", secondSlots);
+		ReflectionTestUtils.setField(store, "_minuteSlots", 1440);
+		ReflectionTestUtils.setField(store, "_hourSlots", 48);
+		ReflectionTestUtils.setField(store, "_maxPoints", 10000);
+		ReflectionTestUtils.setField(store, "_defaultTenant", "default");
+		store.open();
+		return store;
+	}
+
+	private static TransactionSlice slice(long timestampMillis, double... amounts)
+	{
+		TransactionSlice slice = new TransactionSlice();
+		slice.reset(Math.floorDiv(timestampMillis, 1000L));
+		for (double amount : amounts)
+		{
+			slice.add(amount);
+		}
+		return slice;
+	}
+
+	private static void assertPoint(TransactionHistoryPoint point, long timestamp, long count, double sum, double min, double max)
+	{
+		assertEquals(timestamp, point.getTimestamp());
+		assertEquals(count, point.getCount());
+		assertEquals(sum, point.getSum(), 0);
+		assertEquals(min, point.getMin(), 0);
+		assertEquals(max, point.getMax(), 0);
+		assertEquals(sum / count, point.getAvg(), 1e-9);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Slices of 4 seconds spread over two minutes and two hours are recorded, then queried per second, minute, 2 minutes and hour.
+	 *
+	 * Result:<br/>
+	 * Each step aggregates count, sum, min and max of the buckets it covers, empty steps are omitted.
+	 */
+	@Test
+	public void recordedSlicesAreAggregatedPerStep()
+	{
+		_store = openStore(_folder.getRoot(), 86400);
+		_store.record("default", slice(HOUR, 4, 6));
+		_store.record("default", slice(HOUR + 1000, 7));
+		_store.record("default", slice(HOUR + 61000, 3));
+		_store.record("default", slice(HOUR + 3600000, 100));
+		long to = HOUR + 2 * 3600000;
+
+		List<TransactionHistoryPoint> seconds = _store.query("default", HOUR, to, 1000);
+		assertEquals(4, seconds.size());
+		assertPoint(seconds.get(0), HOUR, 2, 10, 4, 6);
+		assertPoint(seconds.get(1), HOUR + 1000, 1, 7, 7, 7);
+		assertPoint(seconds.get(2), HOUR + 61000, 1, 3, 3, 3);
+		assertPoint(seconds.get(3), HOUR + 3600000, 1, 100, 100, 100);
+
+		List<TransactionHistoryPoint> minutes = _store.query("default", HOUR, to, 60000);
+		assertEquals(3, minutes.size());
+		assertPoint(minutes.get(0), HOUR, 3, 17, 4, 7);
+		assertPoint(minutes.get(1), HOUR + 60000, 1, 3, 3, 3);
+		assertPoint(minutes.get(2), HOUR + 3600000, 1, 100, 100, 100);
+
+		List<TransactionHistoryPoint> twoMinutes = _store.query("default", HOUR, to, 120000);
+		assertEquals(2, twoMinutes.size());
+		assertPoint(twoMinutes.get(0), HOUR, 4, 20, 3, 7);
+
+		List<TransactionHistoryPoint> hours = _store.query("default", HOUR, to, 3600000);
+		assertEquals(2, hours.size());
+		assertPoint(hours.get(0), HOUR, 4, 20, 3, 7);
+		assertPoint(hours.get(1), HOUR + 3600000, 1, 100, 100, 100);
+
+		// the range is half open: the last second is excluded
+		assertEquals(1, _store.query("default", HOUR, HOUR + 1000, 1000).size());
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Slices at 10:00:00, 10:00:01 and 10:00:31 are queried per minute from 10:00:30, and per hour up to 10:00:31.
+	 *
+	 * Result:<br/>
+	 * from is inclusive and to exclusive: the seconds outside the range are left out of the point of their step,<br>
+	 * which is still stamped with the start of the step.
+	 */
+	@Test
+	public void rangeInsideAStepOnlyCountsItsSeconds()
+	{
+		_store = openStore(_folder.getRoot(), 86400);
+		_store.record("default", slice(HOUR, 4, 6));
+		_store.record("default", slice(HOUR + 1000, 7));
+		_store.record("default", slice(HOUR + 31000, 5));
+
+		List<TransactionHistoryPoint> minutes = _store.query("default", HOUR + 30000, HOUR + 60000, 60000);
+		assertEquals(1, minutes.size());
+		assertPoint(minutes.get(0), HOUR, 1, 5, 5, 5);
+
+		List<TransactionHistoryPoint> hours = _store.query("default", HOUR, HOUR + 31000, 3600000);
+		assertEquals(1, hours.size());
+		assertPoint(hours.get(0), HOUR, 3, 17, 4, 7);
+
+		// a from within a second starts with the next second
+		assertTrue(_store.query("default", HOUR + 1, HOUR + 1000, 1000).isEmpty());
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * With a retention of 10 seconds, a slice lands on the slot of a slice 10 seconds older.
+	 *
+	 * Result:<br/>
+	 * The per second series only returns the newer second, the per minute series still holds both.
+	 */
+	@Test
+	public void retentionOverwritesOldBuckets()
+	{
+		_store = openStore(_folder.getRoot(), 10);
+		_store.record("default", slice(HOUR, 5));
+		_store.record("default", slice(HOUR + 10000, 8));
+
+		List<TransactionHistoryPoint> seconds = _store.query("default", HOUR, HOUR + 11000, 1000);
+		assertEquals(1, seconds.size());
+		assertPoint(seconds.get(0), HOUR + 10000, 1, 8, 8, 8);
+		assertTrue(_store.query("default", HOUR, HOUR + 1000, 1000).isEmpty());
+
+		List<TransactionHistoryPoint> minutes = _store.query("default", HOUR, HOUR + 60000, 60000);
+		assertEquals(1, minutes.size());
+		assertPoint(minutes.get(0), HOUR, 2, 13, 5, 8);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Two tenants record history, the store is closed and opened again.
+	 *
+	 * Result:<br/>
+	 * Each tenant only sees its own history, it survives the restart, and querying an unknown tenant creates no files.
+	 */
+	@Test
+	public void tenantsAreIsolatedAndPersisted()
+	{
+		_store = openStore(_folder.getRoot(), 86400);
+		_store.record("default", slice(HOUR, 1));
+		_store.record("merchant-1", slice(HOUR, 2, 3));
+		_store.close();
+
+		_store = openStore(_folder.getRoot(), 86400);
+		assertPoint(_store.query("default", HOUR, HOUR + 1000, 1000).get(0), HOUR, 1, 1, 1, 1);
+		assertPoint(_store.query("merchant-1", HOUR, HOUR + 1000, 1000).get(0), HOUR, 2, 5, 2, 3);
+		assertTrue(_store.query("merchant-2", HOUR, HOUR + 1000, 1000).isEmpty());
+		assertFalse(new File(_folder.getRoot(), "merchant-2").exists());
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * The history of a tenant is released (its engine was evicted), then queried and recorded again.
+	 *
+	 * Result:<br/>
+	 * It is unmapped and no longer held by the store, a query maps it only for its own use, and a new slice maps it again.
+	 */
+	@Test
+	public void releasedHistoryIsMappedAgainOnUse()
+	{
+		_store = openStore(_folder.getRoot(), 86400);
+		Map<?, ?> tenants = (Map<?, ?>) ReflectionTestUtils.getField(_store, "_tenants");
+		_store.record("merchant-1", slice(HOUR, 2));
+		assertTrue(tenants.containsKey("merchant-1"));
+		assertEquals(5 * (86400 + 1440 + 48) * Long.BYTES, _store.footprintBytes());
+
+		_store.release("merchant-1");
+		assertFalse(tenants.containsKey("merchant-1"));
+		assertPoint(_store.query("merchant-1", HOUR, HOUR + 1000, 1000).get(0), HOUR, 1, 2, 2, 2);
+		assertFalse(tenants.containsKey("merchant-1"));
+
+		_store.record("merchant-1", slice(HOUR, 3));
+		assertTrue(tenants.containsKey("merchant-1"));
+		assertPoint(_store.query("merchant-1", HOUR, HOUR + 1000, 1000).get(0), HOUR, 2, 5, 2, 3);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A second store is opened on a directory in use, then again once the first one is closed.
+	 *
+	 * Result:<br/>
+	 * The second store runs without history while the directory is locked, and gets it once it is released.
+	 */
+	@Test
+	public void directoryIsUsedByASingleStore()
+	{
+		_store = openStore(_folder.getRoot(), 86400);
+		assertTrue(_store.isEnabled());
+		TransactionHistoryStore second = openStore(_folder.getRoot(), 86400);
+		assertFalse(second.isEnabled());
+		second.record("default", slice(HOUR, 1));
+		assertTrue(_store.query("default", HOUR, HOUR + 1000, 1000).isEmpty());
+		second.close();
+
+		_store.close();
+		_store = openStore(_folder.getRoot(), 86400);
+		assertTrue(_store.isEnabled());
+	}
+}
@@ -0,0 +1,233 @@
+package com.n26.app.bo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/********************************************************
+ * Tests of the multi-producer / single-consumer {@link TransactionRingBuffer}: no entry is lost or applied twice<br>
+ * under concurrent publishers, flush() and stop() wait for the writer, and a full buffer holds its producers back.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionRingBufferTests {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	/************************************************************
+	 * Accumulates what the writer thread hands over. Only the writer thread mutates it,<br>
+	 * the test thread reads it after flush() or stop() returned.
+	 */
+	private static class CountingHandler implements TransactionRingBuffer.Handler<String> {
+		long count;
+		double sum;
+		long idHashSum;
+		int batches;
+
+		@Override
+		public void onTransaction(String target, double amount, long timestamp, long idHash, boolean endOfBatch)
+		{
+			count++;
+			sum += amount;
+			idHashSum += idHash;
+			if (endOfBatch)
+			{
+				batches++;
+			}
+		}
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * 8 threads publish 100000 transactions each into a small buffer (many laps), then flush.
+	 *
+	 * Result:<br/>
+	 * flush() returns true and the handler saw exactly every transaction, with the exact count, sum and ids.
+	 */
+	@Test
+	public void concurrentPublishersThenFlush() throws InterruptedException
+	{
+		int producers = 8;
+		int perProducer = 100000;
+		for (String waitStrategy : new String[] { "busy-spin", "yielding", "sleeping", "blocking" })
+		{
+			TransactionRingBuffer<String> ringBuffer = new TransactionRingBuffer<>(1024, 64, IngestWaitStrategy.fromName(waitStrategy));
+			CountingHandler handler = new CountingHandler();
+			ringBuffer.start(handler, "ring-buffer-test-writer");
+			List<Thread> threads = new ArrayList<>();
+			for (int p = 0; p < producers; p++)
+			{
+				Thread thread = new Thread(() -> {
+					for (int i = 0; i < perProducer; i++)
+					{
+						ringBuffer.publish("tenant", i % 100, i, 1);
+					}
+				});
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+			assertTrue(waitStrategy, ringBuffer.flush(TIMEOUT_MILLIS));
+			long expectedCount = (long) producers * perProducer;
+			// every amount is an integer, the double sum is exact whatever the order
+			double expectedSum = producers * (perProducer / 100) * (99 * 100 / 2.0);
+			assertEquals(waitStrategy, expectedCount, handler.count);
+			assertEquals(waitStrategy, expectedSum, handler.sum, 0);
+			assertEquals(waitStrategy, expectedCount, handler.idHashSum);
+			assertTrue(waitStrategy, handler.batches > 0 && handler.batches <= expectedCount);
+			ringBuffer.stop(TIMEOUT_MILLIS);
+		}
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Transactions are published, then the buffer is stopped without an explicit flush.
+	 *
+	 * Result:<br/>
+	 * stop() drains every published transaction before the writer thread exits.
+	 */
+	@Test
+	public void stopDrainsEverythingPublished()
+	{
+		TransactionRingBuffer<String> ringBuffer = new TransactionRingBuffer<>(65536, 1024, IngestWaitStrategy.fromName("sleeping"));
+		CountingHandler handler = new CountingHandler();
+		ringBuffer.start(handler, "ring-buffer-test-writer");
+		for (int i = 0; i < 50000; i++)
+		{
+			ringBuffer.publish("tenant", 2, i, 0);
+		}
+		ringBuffer.stop(TIMEOUT_MILLIS);
+		assertEquals(50000, handler.count);
+		assertEquals(100000, handler.sum, 0);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * The writer is stuck in the handler while producers fill the whole buffer.
+	 *
+	 * Result:<br/>
+	 * The publish after a full lap blocks until the writer moves on, then every transaction is applied.
+	 */
+	@Test
+	public void fullBufferAppliesBackPressure() throws InterruptedException
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		CountingHandler counter = new CountingHandler();
+		TransactionRingBuffer<String> ringBuffer = new TransactionRingBuffer<>(4, 1024, IngestWaitStrategy.fromName("blocking"));
+		ringBuffer.start((target, amount, timestamp, idHash, endOfBatch) -> {
+			try
+			{
+				release.await();
+			} catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			counter.onTransaction(target, amount, timestamp, idHash, endOfBatch);
+		}, "ring-buffer-test-writer");
+		for (int i = 0; i < ringBuffer.getCapacity(); i++)
+		{
+			ringBuffer.publish("tenant", 1, i, 0);
+		}
+		Thread blockedProducer = new Thread(() -> ringBuffer.publish("tenant", 1, 4, 0));
+		blockedProducer.start();
+		blockedProducer.join(300);
+		assertTrue("the producer must wait while the buffer is full", blockedProducer.isAlive());
+		assertFalse(ringBuffer.flush(50));
+
+		release.countDown();
+		blockedProducer.join(TIMEOUT_MILLIS);
+		assertFalse(blockedProducer.isAlive());
+		assertTrue(ringBuffer.flush(TIMEOUT_MILLIS));
+		assertEquals(ringBuffer.getCapacity() + 1, counter.count);
+		ringBuffer.stop(TIMEOUT_MILLIS);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * Transactions are handled, then their targets are dropped by the caller (e.g. an evicted tenant engine).
+	 *
+	 * Result:<br/>
+	 * The buffer does not keep the targets reachable once they were handed to the handler.
+	 */
+	@Test
+	public void handledTargetsAreNotRetained()
+	{
+		TransactionRingBuffer<String> ringBuffer = new TransactionRingBuffer<>(16, 4, IngestWaitStrategy.fromName("sleeping"));
+		ringBuffer.start(new CountingHandler(), "ring-buffer-test-writer");
+		for (int i = 0; i < 10; i++)
+		{
+			ringBuffer.publish("tenant-" + i, 1, i, 0);
+		}
+		assertTrue(ringBuffer.flush(TIMEOUT_MILLIS));
+		ringBuffer.stop(TIMEOUT_MILLIS);
+		Object[] targets = (Object[]) ReflectionTestUtils.getField(ringBuffer, "_targets");
+		for (Object target : targets)
+		{
+			assertNull(target);
+		}
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * With the blocking wait strategy, a producer publishes while the lock of the strategy is held and the writer is not parked.
+	 *
+	 * Result:<br/>
+	 * The producer does not take the lock, only a parked writer needs a signal.
+	 */
+	@Test
+	public void blockingStrategyOnlySignalsAParkedWriter() throws InterruptedException
+	{
+		IngestWaitStrategy blocking = IngestWaitStrategy.fromName("blocking");
+		ReentrantLock lock = (ReentrantLock) ReflectionTestUtils.getField(blocking, "_lock");
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread holder = new Thread(() -> {
+			lock.lock();
+			try
+			{
+				locked.countDown();
+				release.await();
+			} catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			} finally
+			{
+				lock.unlock();
+			}
+		});
+		holder.start();
+		locked.await();
+		Thread producer = new Thread(blocking::signalAllWhenBlocking);
+		producer.start();
+		producer.join(TIMEOUT_MILLIS);
+		assertFalse("the producer must not wait for the lock", producer.isAlive());
+		release.countDown();
+		holder.join(TIMEOUT_MILLIS);
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A misspelt wait strategy in the configuration.
+	 *
+	 * Result:<br/>
+	 * It is rejected instead of silently falling back to another strategy.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownWaitStrategyIsRejected()
+	{
+		IngestWaitStrategy.fromName("sleepy");
+	}
+}
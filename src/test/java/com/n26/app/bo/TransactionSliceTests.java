@@ -0,0 +1,47 @@
+package com.n26.app.bo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/********************************************************
+ * Tests of the transaction ids remembered by a {@link TransactionSlice} for deduplication, up to its memory cap.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionSliceTests {
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A slice capped at 2 ids receives 4 distinct ids, then retries of all of them, then is reused for the next second.
+	 *
+	 * Result:<br/>
+	 * The retries of the 2 remembered ids are duplicates, the 2 ids over the cap are reported as untracked<br>
+	 * (their retries cannot be detected), and the reused slice starts tracking again.
+	 */
+	@Test
+	public void idsOverTheCapAreReportedAsUntracked()
+	{
+		TransactionSlice slice = new TransactionSlice();
+		slice.reset(1);
+		assertTrue(slice.addTransactionId(11, 2));
+		assertTrue(slice.addTransactionId(12, 2));
+		assertEquals(0, slice.getUntrackedIds());
+		assertTrue(slice.addTransactionId(13, 2));
+		assertTrue(slice.addTransactionId(14, 2));
+		assertEquals(2, slice.getUntrackedIds());
+
+		assertFalse(slice.addTransactionId(11, 2));
+		assertFalse(slice.addTransactionId(12, 2));
+		assertTrue(slice.addTransactionId(13, 2));
+		assertEquals(3, slice.getUntrackedIds());
+
+		slice.reset(2);
+		assertEquals(0, slice.getUntrackedIds());
+		assertTrue(slice.addTransactionId(13, 2));
+		assertFalse(slice.addTransactionId(13, 2));
+	}
+}
@@ -0,0 +1,223 @@
+package com.n26.app.bo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.n26.app.controller.StatisticsController;
+import com.n26.app.model.RecordTransactionRequest;
+import com.n26.app.model.TransactionStatisticResponse;
+
+/********************************************************
+ * Tests of the tenant registry of the {@link TransactionStatisticsManager}: how many tenants fit in a memory budget and what they cost,<br>
+ * the slot of the default tenant, the refusal (503) of a new tenant once maxTenants is reached, and the eviction of idle engines.
+ *
+ * @author pgobin
+ *
+ */
+public class TransactionStatisticsManagerTests {
+
+	private static final Logger log = LogManager.getLogger(TransactionStatisticsManagerTests.class);
+
+	private static final long MB = 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	private TransactionHistoryStore _store;
+	private TransactionStatisticsManager _manager;
+
+	@After
+	public void closeManager()
+	{
+		if (_manager != null)
+		{
+			_manager.shutdown();
+		}
+		if (_store != null)
+		{
+			_store.close();
+		}
+	}
+
+	private TransactionStatisticsManager openManager(int maxTenants, long memoryBudgetBytes, long idleEvictionSeconds)
+	{
+		_store = new TransactionHistoryStore();
+		ReflectionTestUtils.setField(_store, "_enabled", true);
+		ReflectionTestUtils.setField(_store, "_directory", _folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(_store, "_secondSlots", 120);
+		ReflectionTestUtils.setField(_store, "_minuteSlots", 60);
+		ReflectionTestUtils.setField(_store, "_hourSlots", 24);
+		ReflectionTestUtils.setField(_store, "_maxPoints", 10000);
+		ReflectionTestUtils.setField(_store, "_defaultTenant", "default");
+		ReflectionTestUtils.setField(_store, "_maxMappedBytes", 34359738368L);
+		_store.open();
+
+		_manager = new TransactionStatisticsManager();
+		ReflectionTestUtils.setField(_manager, "_historyStore", _store);
+		ReflectionTestUtils.setField(_manager, "_rateTimeConstantSeconds", 60L);
+		ReflectionTestUtils.setField(_manager, "_dedupEnabled", true);
+		ReflectionTestUtils.setField(_manager, "_defaultTenant", "default");
+		ReflectionTestUtils.setField(_manager, "_defaultTenantMaxBytes", 16 * MB);
+		ReflectionTestUtils.setField(_manager, "_maxBytesPerTenant", MB);
+		ReflectionTestUtils.setField(_manager, "_memoryBudgetBytes", memoryBudgetBytes);
+		ReflectionTestUtils.setField(_manager, "_maxTenants", maxTenants);
+		ReflectionTestUtils.setField(_manager, "_idleEvictionSeconds", idleEvictionSeconds);
+		ReflectionTestUtils.setField(_manager, "_ingestMode", "sync");
+		_manager.start();
+		return _manager;
+	}
+
+	private static RecordTransactionRequest transaction(double amount, long timestamp)
+	{
+		return new RecordTransactionRequest(amount, timestamp);
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * A budget of 1.2GB with the default caps, then 1000 tenants record 3 transactions each.
+	 *
+	 * Result:<br/>
+	 * Over 1000 tenants fit in the budget, every tenant sees only its own transactions,<br>
+	 * and a tenant actually holds a few KB of heap, far below its 1MB cap.
+	 */
+	@Test
+	public void thousandTenantsInOneJvm()
+	{
+		openManager(10000, 1200 * MB, 300);
+		int maxTenants = (int) ReflectionTestUtils.getField(_manager, "_maxTenants");
+		assertTrue("maxTenants " + maxTenants, maxTenants > 1000 && maxTenants < 10000);
+
+		int tenants = 1000;
+		long before = usedHeap();
+		long now = Instant.now().toEpochMilli();
+		for (int tenant = 0; tenant < tenants; tenant++)
+		{
+			for (int i = 1; i <= 3; i++)
+			{
+				assertTrue(_manager.recordTransaction("merchant-" + tenant, transaction(tenant + i, now - i)));
+			}
+		}
+		long bytesPerTenant = (usedHeap() - before) / tenants;
+		log.info("A tenant with 3 transactions holds about " + bytesPerTenant + " bytes of heap.");
+		assertTrue(bytesPerTenant + " bytes per tenant", bytesPerTenant < 64 * 1024);
+
+		for (int tenant = 0; tenant < tenants; tenant += 111)
+		{
+			TransactionStatisticResponse statistics = _manager.getTransactionStatistics("merchant-" + tenant);
+			assertEquals(3, statistics.getCount());
+			assertEquals(3 * tenant + 6, statistics.getSum(), 0);
+			assertEquals(tenant + 1, statistics.getMin(), 0);
+		}
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * maxTenants is 3, two tenants record transactions, then a third one and then a client without any tenant.
+	 *
+	 * Result:<br/>
+	 * The third tenant is refused, with a 503 (service unavailable) from the controller, but the default tenant<br>
+	 * always has its slot: its transactions are recorded (201).
+	 */
+	@Test
+	public void defaultTenantKeepsItsSlot()
+	{
+		openManager(3, 1200 * MB, 300);
+		StatisticsController controller = new StatisticsController();
+		ReflectionTestUtils.setField(controller, "_transactionStatisticsManager", _manager);
+		ReflectionTestUtils.setField(controller, "_tenantHeader", "x-tenant");
+		HttpHeaders headers = new HttpHeaders();
+		long now = Instant.now().toEpochMilli();
+
+		assertEquals(HttpStatus.CREATED, controller.tenantTransactions(headers, "merchant-1", transaction(1, now)).getStatusCode());
+		assertEquals(HttpStatus.CREATED, controller.tenantTransactions(headers, "merchant-2", transaction(2, now)).getStatusCode());
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, controller.tenantTransactions(headers, "merchant-3", transaction(3, now)).getStatusCode());
+		try
+		{
+			_manager.recordTransaction("merchant-3", transaction(3, now));
+			fail("a tenant over maxTenants must be refused");
+		} catch (IllegalStateException ex)
+		{
+			// expected
+		}
+
+		assertEquals(HttpStatus.CREATED, controller.transactions(headers, transaction(4, now)).getStatusCode());
+		assertEquals(1, _manager.getTransactionStatistics().getCount());
+		// the default tenant does not take the slot of an existing tenant either
+		assertEquals(HttpStatus.CREATED, controller.tenantTransactions(headers, "merchant-2", transaction(2, now)).getStatusCode());
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, controller.tenantTransactions(headers, "merchant-3", transaction(3, now)).getStatusCode());
+	}
+
+	/************************************************************
+	 * Usecase: <br/>
+	 * maxTenants is 2 (the default tenant and one more). A tenant records a transaction about to expire and stays idle,<br>
+	 * the maintenance runs, then another tenant and the first one record again.
+	 *
+	 * Result:<br/>
+	 * The idle engine is evicted and its history unmapped, which frees its slot for the other tenant.<br>
+	 * Once the slot is free again, the first tenant gets a new, empty engine.
+	 */
+	@Test
+	public void idleEngineIsEvictedAndCreatedAgain() throws InterruptedException
+	{
+		openManager(2, 1200 * MB, 0);
+		Map<?, ?> engines = (Map<?, ?>) ReflectionTestUtils.getField(_manager, "_engines");
+		Map<?, ?> histories = (Map<?, ?>) ReflectionTestUtils.getField(_store, "_tenants");
+		assertTrue(_manager.recordTransaction("merchant-1", transaction(5, Instant.now().toEpochMilli() - 59950)));
+		Object evicted = engines.get("merchant-1");
+		Thread.sleep(1200);
+
+		ReflectionTestUtils.invokeMethod(_manager, "maintainStatisticsForO1");
+		assertFalse(engines.containsKey("merchant-1"));
+		assertTrue(((TransactionStatisticsEngine) evicted).isEvicted());
+		assertFalse(histories.containsKey("merchant-1"));
+		assertNull(_manager.getTransactionStatistics("merchant-1"));
+
+		long now = Instant.now().toEpochMilli();
+		assertTrue(_manager.recordTransaction("merchant-2", transaction(7, now)));
+		ReflectionTestUtils.setField(_manager, "_idleEvictionSeconds", 300L);
+		try
+		{
+			_manager.recordTransaction("merchant-1", transaction(6, now));
+			fail("merchant-2 took the slot");
+		} catch (IllegalStateException ex)
+		{
+			// expected
+		}
+
+		ReflectionTestUtils.setField(_manager, "_maxTenants", 3);
+		assertTrue(_manager.recordTransaction("merchant-1", transaction(6, now)));
+		assertNotSame(evicted, engines.get("merchant-1"));
+		TransactionStatisticResponse statistics = _manager.getTransactionStatistics("merchant-1");
+		assertEquals(1, statistics.getCount());
+		assertEquals(6, statistics.getSum(), 0);
+		// the expired transaction was rolled into the history before the eviction
+		assertEquals(1, _manager.getTransactionHistory("merchant-1", now - 120000, now + 1000, 1000).size());
+	}
+}